@@ -0,0 +1,10 @@
+#!/bin/bash
+#$1: benchmark class
+#$2..$*: benchmark parameters (see the javadoc of the benchmark)
+#e.g.: ./runBenchmark.sh recipes_service.tsae.persistence.WriteAheadLogBenchmark 256 10 2
+#compiles the tests and benchmarks of ../test against the classes in ../bin
+
+mkdir -p ../bin-test
+javac -cp "../bin:../lib/*" -d ../bin-test $(find ../test -name '*.java') || exit 1
+
+java -cp "../bin-test:../bin:../lib/*" $*
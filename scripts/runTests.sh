@@ -0,0 +1,14 @@
+#!/bin/bash
+#$1..$*: test classes to run (all the *Test classes of ../test by default)
+#e.g.: ./runTests.sh recipes_service.tsae.data_structures.LogTest
+#compiles the tests and benchmarks of ../test against the classes in ../bin
+
+mkdir -p ../bin-test
+javac -cp "../bin:../lib/*" -d ../bin-test $(find ../test -name '*.java') || exit 1
+
+TESTS=$*
+if [ -z "$TESTS" ]; then
+	TESTS=$(cd ../test && find . -name '*Test.java' | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g' | sort)
+fi
+
+java -cp "../bin-test:../bin:../lib/*" util.TestRunner $TESTS
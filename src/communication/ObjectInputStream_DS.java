@@ -20,32 +20,186 @@
 
 package communication;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import recipes_service.activity_simulation.SimulationData;
+import util.WireDecoder;
 
 
 /**
  * Implements a modification of the ObjectInputStream to simulate failures.
+ * <p>
+ * Objects and frames written compressed by ObjectOutputStream_DS are
+ * decompressed when they are read.
  * 
  * @author Joan-Manuel Marques
  * December 2012
  *
  */
 public class ObjectInputStream_DS {
+	// larger frames are considered corrupted
+	private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
 	private ObjectInputStream in;
+	// stream below the object stream (buffered or not)
+	private InputStream bytes;
+
+	// decompression (created with the first compressed object)
+	private Inflater inflater = null;
+	// the inflater has been released (close)
+	private boolean closed = false;
+	private byte[] compressed = new byte[0];
+	private long decompressedObjects = 0;
+	private long bytesBeforeDecompression = 0;
+	private long bytesAfterDecompression = 0;
+	private long decompressionNanos = 0;
 	
 	public ObjectInputStream_DS(InputStream inStream) throws IOException{
-		in = new ObjectInputStream(inStream);
+		this(inStream, 0);
+	}
+
+	/**
+	 * @param bufferSize size of the buffer (bytes) of the data read from inStream (0: not buffered)
+	 */
+	public ObjectInputStream_DS(InputStream inStream, int bufferSize) throws IOException{
+		bytes = bufferSize > 0 ? new BufferedInputStream(inStream, bufferSize) : inStream;
+		in = new ObjectInputStream(bytes);
+	}
+
+	/**
+	 * @return number of bytes that can be read without blocking, including the
+	 * buffered ones (0 if no more objects have been received)
+	 */
+	public int available() throws IOException{
+		return bytes.available();
 	}
 
 	public Object readObject() throws IOException, ClassNotFoundException{
 		if (SimulationData.getInstance().isConnected()){
-			return in.readObject();
+			Object obj = in.readObject();
+			return obj == ObjectOutputStream_DS.Compressed.OBJECT ? readCompressed() : obj;
 		}
 		in.close();
 		throw new IOException("Trying to read from a closed ObjectInputStream_DS");
 	}
+
+	/**
+	 * Reads a frame written by ObjectOutputStream_DS.writeFrame into the buffer of decoder
+	 */
+	public void readFrame(WireDecoder decoder) throws IOException{
+		if (!SimulationData.getInstance().isConnected()){
+			in.close();
+			throw new IOException("Trying to read from a closed ObjectInputStream_DS");
+		}
+		int length = in.readInt();
+		if (length < 0 && length >= -MAX_FRAME_LENGTH){
+			// compressed frame
+			int compressedLength = -length;
+			length = readLength();
+			inflate(compressedLength, decoder.buffer(length), length);
+			decoder.start(length);
+			return;
+		}
+		if (length < 0 || length > MAX_FRAME_LENGTH){
+			throw new IOException("Corrupted frame length: " + length);
+		}
+		in.readFully(decoder.buffer(length), 0, length);
+		decoder.start(length);
+	}
+
+	/**
+	 * Reads an object written compressed (after its marker)
+	 */
+	private Object readCompressed() throws IOException, ClassNotFoundException{
+		int compressedLength = readLength();
+		int length = readLength();
+		byte[] data = new byte[length];
+		inflate(compressedLength, data, length);
+
+		long start = System.nanoTime();
+		Object obj = new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+		decompressionNanos += System.nanoTime() - start;
+		return obj;
+	}
+
+	private int readLength() throws IOException{
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH){
+			throw new IOException("Corrupted compressed data length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Reads compressedLength bytes and decompresses them into data[0..length)
+	 */
+	private void inflate(int compressedLength, byte[] data, int length) throws IOException{
+		if (compressed.length < compressedLength){
+			compressed = new byte[compressedLength];
+		}
+		in.readFully(compressed, 0, compressedLength);
+
+		long start = System.nanoTime();
+		// (not while reading, so that close does not wait for the data)
+		synchronized (this){
+			if (closed){
+				throw new IOException("Trying to read from a closed ObjectInputStream_DS");
+			}
+			if (inflater == null){
+				inflater = new Inflater();
+			}
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			try {
+				int inflated = 0;
+				while (inflated < length && !inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()){
+					inflated += inflater.inflate(data, inflated, length - inflated);
+				}
+				if (inflated != length || !inflater.finished()){
+					throw new IOException("Corrupted compressed data");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted compressed data: " + e.getMessage());
+			}
+		}
+		decompressionNanos += System.nanoTime() - start;
+		decompressedObjects++;
+		bytesBeforeDecompression += compressedLength;
+		bytesAfterDecompression += length;
+	}
+
+	/**
+	 * Releases the memory of the Inflater, which is not managed by the GC (the
+	 * underlying stream is closed by its owner). Compressed reads fail afterwards.
+	 */
+	public synchronized void close(){
+		closed = true;
+		if (inflater != null){
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return time (nanoseconds) spent decompressing (including the deserialization of the decompressed objects)
+	 */
+	public long getDecompressionNanos(){
+		return decompressionNanos;
+	}
+
+	/**
+	 * @return the statistics of the decompressed objects and frames (empty if none)
+	 */
+	public String statistics(){
+		if (decompressedObjects == 0){
+			return "";
+		}
+		return "decompressed: " + decompressedObjects + " (" + bytesBeforeDecompression + " -> "
+				+ bytesAfterDecompression + " bytes, " + decompressionNanos / 1000000 + " ms)";
+	}
 }
@@ -20,33 +20,381 @@
 
 package communication;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 import recipes_service.activity_simulation.SimulationData;
+import util.Serializer;
 
 
 /**
  * Implements a modification of the ObjectOutputStream to simulate failures.
+ * <p>
+ * If the stream is buffered, objects are only sent when the stream is
+ * flushed (at the end of a message, or group of messages, of a protocol).
+ * <p>
+ * The stream keeps statistics of the objects written: the objects it keeps
+ * (the handle table, until reset) and the bytes written. If a sample interval
+ * is set, one of each interval objects is also serialized on its own, to
+ * estimate the bytes saved by writing back-references to the objects kept.
+ * <p>
+ * If compression is set, the objects (and frames) that the caller allows to
+ * compress and that are at least compressionThreshold bytes long are written
+ * compressed with a Deflater: a Compressed.OBJECT marker followed by
+ * [int compressed length][int length][compressed bytes], or a frame with a
+ * negative length. ObjectInputStream_DS decompresses them.
  * 
  * @author Joan-Manuel Marques
  * December 2012
  *
  */
 public class ObjectOutputStream_DS {
-	private ObjectOutputStream out;
+	// length of the header of a stream (written once)
+	private static final int STREAM_HEADER_LENGTH = 4;
+
+	/**
+	 * Marks an object written compressed (an enum: after the first one, it
+	 * is written as a back-reference)
+	 */
+	enum Compressed {
+		OBJECT
+	}
+
+	private DrainableObjectOutputStream out;
+	private CountingOutputStream counter;
+
+	// compression (null deflater: objects are not compressed)
+	private Deflater deflater = null;
+	// the deflater has been released (close)
+	private boolean closed = false;
+	private int compressionThreshold = 0;
+	private final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+	private byte[] compressed = new byte[0];
+
+	// statistics
+	private long objects = 0;
+	private long resets = 0;
+	private long bytesAtReset = 0;
+	// (0: the bytes saved by back-references are not estimated)
+	private int sampleInterval = 0;
+	private long sampledBytes = 0;
+	private long sampledStandaloneBytes = 0;
+	private long compressedObjects = 0;
+	private long bytesBeforeCompression = 0;
+	private long bytesAfterCompression = 0;
+	private long compressionNanos = 0;
 	
 	public ObjectOutputStream_DS(OutputStream outStream) throws IOException{
-		this.out = new ObjectOutputStream(outStream);
+		this(outStream, 0);
+	}
+
+	/**
+	 * @param bufferSize size of the buffer (bytes) where objects are written until flush (0: not buffered)
+	 */
+	public ObjectOutputStream_DS(OutputStream outStream, int bufferSize) throws IOException{
+		this.counter = new CountingOutputStream(bufferSize > 0 ? new BufferedOutputStream(outStream, bufferSize) : outStream);
+		this.out = new DrainableObjectOutputStream(counter);
+		// the other side waits for the header of the stream
+		this.out.flush();
 	}
 
 	public void writeObject(Object obj) throws IOException{
 		if (SimulationData.getInstance().isConnected()){
+			long bytes = counter.count;
 			out.writeObject(obj);
+			objects++;
+			if (sampleInterval > 0 && objects % sampleInterval == 0){
+				sampledBytes += counter.count - bytes;
+				sampledStandaloneBytes += Serializer.serialize(obj).length - STREAM_HEADER_LENGTH;
+			}
 		} else {
 			out.close();
 			throw new IOException("Trying to write into a closed ObjectOutputStream_DS");
 		}
 	}
+
+	/**
+	 * Writes obj compressed if compression is set and its serialized form
+	 * is at least compressionThreshold bytes long (and compresses)
+	 *
+	 * @param compress false to write obj as writeObject does (the other side is not able to decompress it)
+	 */
+	public void writeObject(Object obj, boolean compress) throws IOException{
+		if (!compress || deflater == null){
+			writeObject(obj);
+			return;
+		}
+		checkConnected();
+
+		long start = System.nanoTime();
+		serialized.reset();
+		ObjectOutputStream standalone = new ObjectOutputStream(serialized);
+		standalone.writeObject(obj);
+		standalone.flush();
+		byte[] data = serialized.toByteArray();
+		int length = data.length >= compressionThreshold ? deflate(data, data.length) : -1;
+		compressionNanos += System.nanoTime() - start;
+		if (length < 0){
+			writeObject(obj);
+			return;
+		}
+
+		out.writeObject(Compressed.OBJECT);
+		out.writeInt(length);
+		out.writeInt(data.length);
+		out.write(compressed, 0, length);
+		// (the compressed bytes are read as a whole)
+		out.drain();
+		objects++;
+	}
+
+	/**
+	 * Writes a frame of binary data (not an object). Like an object, it is
+	 * sent when the stream is flushed if the stream is buffered.
+	 */
+	public void writeFrame(byte[] buffer, int length) throws IOException{
+		if (SimulationData.getInstance().isConnected()){
+			out.writeInt(length);
+			out.write(buffer, 0, length);
+			// the frame ends its block of data (the next frame is not read with it)
+			out.drain();
+		} else {
+			out.close();
+			throw new IOException("Trying to write into a closed ObjectOutputStream_DS");
+		}
+	}
+
+	/**
+	 * Writes a frame compressed if compression is set and it is at least
+	 * compressionThreshold bytes long (and compresses)
+	 *
+	 * @param compress false to write the frame as writeFrame does (the other side is not able to decompress it)
+	 */
+	public void writeFrame(byte[] buffer, int length, boolean compress) throws IOException{
+		if (!compress || deflater == null || length < compressionThreshold){
+			writeFrame(buffer, length);
+			return;
+		}
+		checkConnected();
+
+		long start = System.nanoTime();
+		int compressedLength = deflate(buffer, length);
+		compressionNanos += System.nanoTime() - start;
+		if (compressedLength < 0){
+			writeFrame(buffer, length);
+			return;
+		}
+
+		// (a negative length marks a compressed frame)
+		out.writeInt(-compressedLength);
+		out.writeInt(length);
+		out.write(compressed, 0, compressedLength);
+		out.drain();
+	}
+
+	/**
+	 * Compresses data[0..length) into compressed
+	 *
+	 * @return length of the compressed data, or -1 if it is not smaller than length
+	 */
+	private synchronized int deflate(byte[] data, int length) throws IOException{
+		if (closed){
+			throw new IOException("Trying to write into a closed ObjectOutputStream_DS");
+		}
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		if (compressed.length < length){
+			compressed = new byte[length];
+		}
+		int compressedLength = 0;
+		while (!deflater.finished() && compressedLength < length){
+			compressedLength += deflater.deflate(compressed, compressedLength, length - compressedLength);
+		}
+		if (!deflater.finished()){
+			return -1;
+		}
+		compressedObjects++;
+		bytesBeforeCompression += length;
+		bytesAfterCompression += compressedLength;
+		return compressedLength;
+	}
+
+	/**
+	 * @param level Deflater compression level (1: fastest, 9: best compression)
+	 * @param threshold minimum length (bytes) of the objects and frames compressed
+	 */
+	public void setCompression(int level, int threshold){
+		deflater = new Deflater(level);
+		compressionThreshold = threshold;
+	}
+
+	/**
+	 * Sends the objects written (if the stream is buffered)
+	 */
+	public void flush() throws IOException{
+		checkConnected();
+		out.flush();
+	}
+
+	/**
+	 * Releases the memory of the Deflater, which is not managed by the GC (the
+	 * underlying stream is closed by its owner). Compressed writes fail afterwards.
+	 */
+	public synchronized void close(){
+		closed = true;
+		if (deflater != null){
+			deflater.end();
+		}
+	}
+
+	private void checkConnected() throws IOException{
+		if (!SimulationData.getInstance().isConnected()){
+			out.close();
+			throw new IOException("Trying to write into a closed ObjectOutputStream_DS");
+		}
+	}
+
+	/**
+	 * Discards the objects already written, so that they are not kept
+	 * by the stream (nor by the ObjectInputStream that reads them)
+	 */
+	public void reset() throws IOException{
+		out.reset();
+		out.handles = 0;
+		resets++;
+		bytesAtReset = counter.count;
+	}
+
+	/**
+	 * @param sampleInterval one of each sampleInterval objects written is
+	 * serialized on its own to estimate the bytes saved by back-references (0: no estimation)
+	 */
+	public void setSampleInterval(int sampleInterval){
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * @return number of objects written with writeObject
+	 */
+	public long getObjectsWritten(){
+		return objects;
+	}
+
+	/**
+	 * @return number of bytes written (including the ones not flushed yet)
+	 */
+	public long getBytesWritten(){
+		return counter.count;
+	}
+
+	/**
+	 * @return number of objects kept by the stream since the last reset
+	 * (class descriptors aside), and by the stream that reads them
+	 */
+	public int getHandles(){
+		return out.handles;
+	}
+
+	/**
+	 * @return number of bytes written since the last reset
+	 */
+	public long getBytesSinceReset(){
+		return counter.count - bytesAtReset;
+	}
+
+	public long getResets(){
+		return resets;
+	}
+
+	/**
+	 * @return estimation of the bytes saved by back-references to the objects
+	 * kept, from the sampled objects (0 if none has been sampled)
+	 */
+	public long getEstimatedBytesSaved(){
+		if (sampledBytes == 0){
+			return 0;
+		}
+		return (long) ((double) (sampledStandaloneBytes - sampledBytes) * counter.count / sampledBytes);
+	}
+
+	/**
+	 * @return compressed size / uncompressed size of the objects and frames compressed (1 if none)
+	 */
+	public double getCompressionRatio(){
+		return bytesBeforeCompression == 0 ? 1 : (double) bytesAfterCompression / bytesBeforeCompression;
+	}
+
+	/**
+	 * @return time (nanoseconds) spent compressing (including the serialization of the objects to compress)
+	 */
+	public long getCompressionNanos(){
+		return compressionNanos;
+	}
+
+	/**
+	 * @return the statistics of the stream
+	 */
+	public String statistics(){
+		return "objects: " + objects + ", bytes: " + counter.count + ", handles: " + out.handles
+				+ ", resets: " + resets + ", bytes since reset: " + getBytesSinceReset()
+				+ (sampledBytes > 0 ? ", estimated bytes saved by back-references: " + getEstimatedBytesSaved() : "")
+				+ (deflater != null ? ", compressed: " + compressedObjects + " (" + bytesBeforeCompression + " -> "
+						+ bytesAfterCompression + " bytes, ratio " + String.format("%.3f", getCompressionRatio())
+						+ ", " + compressionNanos / 1000000 + " ms)" : "");
+	}
+
+	/**
+	 * ObjectOutputStream that writes its buffered block data to the underlying
+	 * stream without flushing it, and counts the objects it keeps
+	 */
+	private static class DrainableObjectOutputStream extends ObjectOutputStream {
+		// objects added to the handle table since the last reset
+		private int handles = 0;
+
+		DrainableObjectOutputStream(OutputStream out) throws IOException{
+			super(out);
+			// (replaceObject is only called for the objects that are not written as back-references)
+			enableReplaceObject(true);
+		}
+
+		@Override
+		public void drain() throws IOException{
+			super.drain();
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException{
+			handles++;
+			return obj;
+		}
+	}
+
+	/**
+	 * Counts the bytes written to the underlying stream
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
 }
@@ -37,6 +37,7 @@ import lsim.library.api.LSimParameters;
 import recipes_service.ServerData;
 import recipes_service.ServerPartnerSide;
 import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.ConnectionSettings;
 import recipes_service.communication.Host;
 import util.Serializer;
 
@@ -73,6 +74,37 @@ public class WorkerInitHandler implements HandlerInitWorker {
 		
 		serverData.setNumberSessions(Integer.parseInt((String)params.get("numSes"))*1000);
 		serverData.setPropagationDegree(Integer.parseInt((String)params.get("propDegree"))*1000);
+		if (params.containsKey("maxConcurrentSessions")){
+			serverData.setMaxConcurrentSessions(Integer.parseInt((String)params.get("maxConcurrentSessions")));
+		}
+		if (params.containsKey("sessionTimeout")){
+			serverData.setSessionTimeout(Long.parseLong((String)params.get("sessionTimeout"))*1000);
+		}
+		if (params.containsKey("operationBatchSize")){
+			serverData.setOperationBatchSize(Integer.parseInt((String)params.get("operationBatchSize")));
+		}
+		if (params.containsKey("catchUpWindow")){
+			serverData.setCatchUpWindow(Integer.parseInt((String)params.get("catchUpWindow")));
+		}
+		if (params.containsKey("reorderBufferSize")){
+			serverData.setReorderBufferSize(Integer.parseInt((String)params.get("reorderBufferSize")));
+		}
+		if (params.containsKey("streamBufferSize")){
+			serverData.setStreamBufferSize(Integer.parseInt((String)params.get("streamBufferSize")));
+		}
+		if (params.containsKey("socketBufferSize")){
+			serverData.setSocketBufferSize(Integer.parseInt((String)params.get("socketBufferSize"))*1024);
+		}
+		if (params.containsKey("streamReset")){
+			serverData.setStreamResetPolicy(
+					ConnectionSettings.ResetPolicy.valueOf(((String)params.get("streamReset")).toUpperCase()),
+					Long.parseLong((String)params.get("streamResetThreshold")));
+			serverData.setStreamStatisticsInterval(Integer.parseInt((String)params.get("streamStatistics")));
+		}
+		if (params.containsKey("compressionLevel")){
+			serverData.setCompression(Integer.parseInt((String)params.get("compressionLevel")),
+					Integer.parseInt((String)params.get("compressionThreshold")));
+		}
 
 		// params 3 to 10: simulation parameters
 		SimulationData.getInstance().setSimulationStop(Integer.parseInt((String)params.get("simulationStop"))*1000);
@@ -103,6 +135,27 @@ public class WorkerInitHandler implements HandlerInitWorker {
 		// * false: Servers running in different computers (or more than one Server in a single computer but
 		// 			this computer having the same internal and external IP address)
 		SimulationData.getInstance().setLocalExecution(((String)params.get("executionMode")).equals("localMode"));
+
+		// optional: TSAE sessions with each partner are multiplexed on a long-lived connection
+		serverData.setPooledConnections(params.containsKey("pooledConnections"));
+
+		// optional: TSAE sessions run on virtual threads (instead of a selector on the partner side)
+		serverData.setVirtualThreadSessions(params.containsKey("sessionExecution"));
+
+		// optional: originated TSAE sessions use the symmetric protocol (if the partner supports it)
+		serverData.setSymmetricSessions(params.containsKey("sessionProtocol"));
+
+		// optional: messages are sent with the binary codec to the partners that support it
+		serverData.setBinaryCodec(params.containsKey("wireCodec"));
+
+		// optional: persistent mode. Operations are stored in a write-ahead log in the
+		// specified folder and recovered when the Server restarts
+		if (params.containsKey("persistenceFolder")){
+			serverData.setPersistenceFolder((String)params.get("persistenceFolder"));
+			serverData.setPersistenceSegmentSize(Long.parseLong((String)params.get("persistenceSegmentSize"))*1024*1024);
+			serverData.setPersistenceCommitDelay(Long.parseLong((String)params.get("persistenceCommitDelay")));
+			serverData.setPersistenceCommitBatch(Integer.parseInt((String)params.get("persistenceCommitBatch")));
+		}
 		
 		
 		//         this computer having the same internal and external IP address) 
@@ -20,22 +20,44 @@
 
 package recipes_service;
 
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
 import recipes_service.activity_simulation.SimulationData;
 import recipes_service.communication.Host;
 import recipes_service.communication.Hosts;
+import recipes_service.communication.ConnectionSettings;
+import recipes_service.communication.PeerConnectionPool;
 import recipes_service.data.AddOperation;
 import recipes_service.data.Operation;
 import recipes_service.data.Recipe;
+import recipes_service.data.OperationType;
 import recipes_service.data.Recipes;
+import recipes_service.data.RemoveOperation;
 import recipes_service.tsae.data_structures.Log;
+import recipes_service.tsae.data_structures.ParticipantRegistry;
 import recipes_service.tsae.data_structures.Timestamp;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
+import recipes_service.tsae.persistence.Checkpoint;
+import recipes_service.tsae.persistence.WriteAheadLog;
+import recipes_service.tsae.sessions.PeerStates;
+import recipes_service.tsae.sessions.SessionExecutors;
+import recipes_service.tsae.sessions.SessionScheduler;
 import recipes_service.tsae.sessions.TSAESessionOriginatorSide;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Joan-Manuel Marques
@@ -52,14 +74,62 @@ public class ServerData {
     // timestamp lock
     private final Object timestampLock = new Object();
 
+    // The TSAE data structures are not locked as a whole: the log locks each host log, and the summary
+    // and the recipes have their own locks (with optimistic reads). The invariant that the summary does
+    // not cover an operation that is not in the log (nor its recipe) holds as operations are added to
+    // the log and to the recipes before the summary is advanced.
+    // Local write lock: local operations are timestamped, added to the log and to the summary in order.
+    // Ack lock: held while the ack is updated together with the row of this server or the log is purged.
+    // ReentrantLocks (instead of synchronized) do not pin the carrier of a virtual thread
+    private final ReentrantLock localWriteLock = new ReentrantLock();
+    private final ReentrantLock ackLock = new ReentrantLock();
+
     // TSAE data structures
     private Log log = null;
     private TimestampVector summary = null;
     private TimestampMatrix ack = null;
 
+    // pooled connections: TSAE sessions with a partner reuse a long-lived connection (false: a connection per session)
+    private boolean pooledConnections = false;
+    // buffering of the streams and options of the sockets of the connections with other servers
+    private final ConnectionSettings connectionSettings = new ConnectionSettings();
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool(connectionSettings);
+
+    // virtual threads: TSAE sessions run on virtual threads (false: partner sessions are served by a selector)
+    private boolean virtualThreadSessions = false;
+    private ExecutorService sessionExecutor = null;
+
+    // symmetric protocol: summaries and acks are exchanged first and then operations flow in both directions at the same time
+    private boolean symmetricSessions = false;
+
+    // originator sessions run in parallel: maximum number of sessions at the same time and
+    // maximum duration (milliseconds) of a session
+    private int maxConcurrentSessions = 4;
+    private long sessionTimeout = 30000;
+    private ExecutorService originatorExecutor = null;
+    private SessionScheduler sessionScheduler = null;
+
+    // maximum number of operations sent in a single message of a TSAE session (1: a message for each operation)
+    private int operationBatchSize = 64;
+    // maximum number of operations sent in a session (0: no limit). The rest are sent in the next sessions
+    private int catchUpWindow = 0;
+    // maximum number of operations received out of order held until the operations before them are received
+    private int reorderBufferSize = Log.DEFAULT_REORDER_BUFFER_SIZE;
+
+    // summaries and acks last exchanged with each peer (to send only the changes)
+    private final PeerStates peerStates = new PeerStates();
+
     // recipes data structure
     private final Recipes recipes = new Recipes();
 
+    // persistent mode: folder where the write-ahead log of operations is stored (null: not persistent)
+    private String persistenceFolder = null;
+    private long persistenceSegmentSize = WriteAheadLog.DEFAULT_SEGMENT_SIZE;
+    // group commit: maximum delay (milliseconds) before forcing appended operations (0: sync each writer) and batch size
+    private long persistenceCommitDelay = 2;
+    private int persistenceCommitBatch = 1024;
+    private WriteAheadLog writeAheadLog = null;
+
     // number of TSAE sessions
     int numSes = 1; // number of different partners that a server will contact for a TSAE session each time that TSAE timer (each sessionPeriod seconds) expires
 
@@ -95,10 +165,17 @@ public class ServerData {
      */
     public void startTSAE(Hosts participants) {
         this.participants = participants;
-        this.log = new Log(participants.getIds());
-        this.summary = new TimestampVector(participants.getIds());
-        this.ack = new TimestampMatrix(participants.getIds());
-
+        // log, summary and ack share the registry of participants
+        ParticipantRegistry registry = participants.getRegistry();
+        this.log = new Log(registry);
+        this.log.setReorderBufferSize(reorderBufferSize);
+        this.summary = new TimestampVector(registry);
+        this.ack = new TimestampMatrix(registry);
+
+        // persistent mode: rebuild the state stored before the last stop
+        if (persistenceFolder != null) {
+            recoverPersistentState();
+        }
 
         //  Sets the Timer for TSAE sessions
         tsae = new TSAESessionOriginatorSide(this);
@@ -108,6 +185,85 @@ public class ServerData {
 
     public void stopTSAEsessions() {
         this.tsaeSessionTimer.cancel();
+        connectionPool.closeAll();
+        synchronized (this) {
+            if (sessionExecutor != null) {
+                sessionExecutor.shutdown();
+            }
+            if (originatorExecutor != null) {
+                originatorExecutor.shutdown();
+            }
+            if (sessionScheduler != null) {
+                LSimLogger.log(Level.INFO, "[ServerData] sessions skipped (partner with a session queued or running): "
+                        + sessionScheduler.getSkippedSessions());
+            }
+        }
+        if (writeAheadLog != null) {
+            log.setWriteAheadLog(null);
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                LSimLogger.log(Level.ERROR, "[ServerData] unable to close the write-ahead log: " + e.getMessage());
+            }
+        }
+        LSimLogger.log(Level.INFO, "[ServerData] reorder buffer: " + log.reorderStatistics());
+    }
+
+    /**
+     * In persistent mode, waits until the operations added to the log
+     * so far are on the storage device. Writers waiting at the same
+     * time share a single group commit.
+     */
+    public void waitDurable() {
+        if (writeAheadLog != null) {
+            writeAheadLog.sync();
+        }
+    }
+
+    /**
+     * Rebuilds log, summary and recipes from the write-ahead log (its checkpoint
+     * and then its operations) and sets it to persist the operations that will be
+     * added to the log.
+     * If the write-ahead log cannot be opened the server runs without persistence.
+     */
+    private void recoverPersistentState() {
+        // ids contain characters that are not valid in file names
+        File folder = new File(persistenceFolder, id.replaceAll("[^A-Za-z0-9._-]", "_"));
+
+        try {
+            writeAheadLog = new WriteAheadLog(folder, persistenceSegmentSize);
+            int recovered = writeAheadLog.recover(state -> {
+                Checkpoint checkpoint = (Checkpoint) state;
+                // the purged operations are not in the log (the newer ones are replayed from the segments)
+                log.restore(checkpoint.getPurged());
+                summary.updateMax(checkpoint.getSummary());
+                recipes.addAll(checkpoint.getRecipes());
+                Timestamp last = checkpoint.getSummary().getLast(id);
+                if (last != null) {
+                    synchronized (timestampLock) {
+                        seqnum = Math.max(seqnum, last.getSeqnumber());
+                    }
+                }
+            }, op -> {
+                for (Operation added : log.addAll(Collections.singletonList(op))) {
+                    apply(added);
+                    if (added.getTimestamp().getHostid().equals(id)) {
+                        synchronized (timestampLock) {
+                            seqnum = Math.max(seqnum, added.getTimestamp().getSeqnumber());
+                        }
+                    }
+                }
+            });
+            log.setWriteAheadLog(writeAheadLog);
+            if (persistenceCommitDelay > 0) {
+                writeAheadLog.startGroupCommit(persistenceCommitDelay, persistenceCommitBatch);
+            }
+            LSimLogger.log(Level.INFO, "[ServerData] recovered " + recovered + " operations from " + folder);
+        } catch (IOException e) {
+            LSimLogger.log(Level.ERROR, "[ServerData] unable to recover persistent state from " + folder + ": " + e.getMessage());
+            e.printStackTrace();
+            writeAheadLog = null;
+        }
     }
 
     public boolean end() {
@@ -122,36 +278,174 @@ public class ServerData {
     // *** timestamps
     // ******************************
     private Timestamp nextTimestamp() {
-        Timestamp nextTimestamp;
+        return new Timestamp(id, reserveSeqnumbers(1));
+    }
+
+    /**
+     * Reserves a range of consecutive sequence numbers
+     *
+     * @param count number of sequence numbers
+     * @return the first sequence number of the range
+     */
+    private long reserveSeqnumbers(int count) {
         synchronized (timestampLock) {
             if (seqnum == Timestamp.NULL_TIMESTAMP_SEQ_NUMBER) {
                 seqnum = -1;
             }
-            nextTimestamp = new Timestamp(id, ++seqnum);
+            long first = seqnum + 1;
+            seqnum += count;
+            return first;
         }
-        return nextTimestamp;
     }
 
     // ******************************
     // *** add and remove recipes
     // ******************************
-    public synchronized void addRecipe(String recipeTitle, String recipe) {
+    public void addRecipe(String recipeTitle, String recipe) {
+
+        Recipe rcpe;
+        localWriteLock.lock();
+        try {
+            Timestamp timestamp = nextTimestamp();
+            rcpe = new Recipe(recipeTitle, recipe, id, timestamp);
+            Operation op = new AddOperation(rcpe, timestamp);
+
+            // (addAll also returns the held operations that op releases, if any)
+            for (Operation added : this.log.addAll(Collections.singletonList(op))) {
+                apply(added);
+            }
+        } finally {
+            localWriteLock.unlock();
+        }
+//		LSimLogger.log(Level.TRACE,"The recipe '"+recipeTitle+"' has been added");
+
+        // persistent mode: wait (without holding the lock) until the operation is durable
+        waitDurable();
+    }
 
-        Timestamp timestamp = nextTimestamp();
-        Recipe rcpe = new Recipe(recipeTitle, recipe, id, timestamp);
-        Operation op = new AddOperation(rcpe, timestamp);
+    /**
+     * Applies an operation appended to the log: its recipe is added (or
+     * removed) before the summary is advanced to it.
+     */
+    private void apply(Operation op) {
+        if (op.getType() == OperationType.ADD) {
+            recipes.add(((AddOperation) op).getRecipe());
+        } else {
+            recipes.remove(((RemoveOperation) op).getRecipeTitle());
+        }
+        summary.updateTimestamp(op.getTimestamp());
+    }
 
-        this.log.add(op);
-        this.summary.updateTimestamp(timestamp);
-        this.recipes.add(rcpe);
-//		LSimLogger.log(Level.TRACE,"The recipe '"+recipeTitle+"' has been added");
+    /**
+     * Adds a batch of recipes: their timestamps are a range of seqnumbers reserved
+     * at once, the operations are appended to the log in one go and the summary
+     * is advanced once, to the last one.
+     *
+     * @param recipes body of each recipe by title, in the order they are timestamped
+     */
+    public void addRecipes(Map<String, String> recipes) {
+        if (recipes.isEmpty()) {
+            return;
+        }
+
+        List<Recipe> rcpes = new ArrayList<>(recipes.size());
+        localWriteLock.lock();
+        try {
+            long first = reserveSeqnumbers(recipes.size());
+            List<Operation> ops = new ArrayList<>(recipes.size());
+            Timestamp timestamp = null;
+            for (Map.Entry<String, String> recipe : recipes.entrySet()) {
+                timestamp = new Timestamp(id, first + ops.size());
+                Recipe rcpe = new Recipe(recipe.getKey(), recipe.getValue(), id, timestamp);
+                rcpes.add(rcpe);
+                ops.add(new AddOperation(rcpe, timestamp));
+            }
+
+            this.log.addAll(ops);
+            this.recipes.addAll(rcpes);
+            this.summary.updateTimestamp(timestamp);
+        } finally {
+            localWriteLock.unlock();
+        }
 
+        // persistent mode: wait (without holding the lock) until the operations are durable
+        waitDurable();
+    }
+
+    /**
+     * Removes a batch of recipes: their timestamps are a range of seqnumbers reserved
+     * at once, the remove operations are appended to the log in one go and the summary
+     * is advanced once, to the last one. Titles of recipes that do not exist are ignored.
+     *
+     * @param recipeTitles titles of the recipes, in the order they are timestamped
+     */
+    public void removeRecipes(Collection<String> recipeTitles) {
+        List<String> removed = new ArrayList<>(recipeTitles.size());
+        localWriteLock.lock();
+        try {
+            List<Recipe> rcpes = new ArrayList<>(recipeTitles.size());
+            for (String recipeTitle : new LinkedHashSet<>(recipeTitles)) {
+                Recipe rcpe = this.recipes.get(recipeTitle);
+                if (rcpe != null) {
+                    rcpes.add(rcpe);
+                    removed.add(recipeTitle);
+                }
+            }
+            if (rcpes.isEmpty()) {
+                return;
+            }
+
+            long first = reserveSeqnumbers(rcpes.size());
+            List<Operation> ops = new ArrayList<>(rcpes.size());
+            Timestamp timestamp = null;
+            for (Recipe rcpe : rcpes) {
+                timestamp = new Timestamp(id, first + ops.size());
+                ops.add(new RemoveOperation(rcpe.getTitle(), rcpe.getTimestamp(), timestamp));
+            }
+
+            this.log.addAll(ops);
+            this.recipes.removeAll(removed);
+            this.summary.updateTimestamp(timestamp);
+        } finally {
+            localWriteLock.unlock();
+        }
+
+        if (!removed.isEmpty()) {
+            // persistent mode: wait (without holding the lock) until the operations are durable
+            waitDurable();
+        }
     }
 
     public synchronized void removeRecipe(String recipeTitle) {
         System.err.println("Error: removeRecipe method (recipesService.serverData) not yet implemented");
     }
 
+    /**
+     * Removes from the log the operations acknowledged by all the participants
+     * (to be called holding the ack lock). In persistent mode, the segments of
+     * the write-ahead log that only contain purged operations are deleted.
+     */
+    public void purgeLog() {
+        log.purgeLog(ack);
+        if (writeAheadLog == null) {
+            return;
+        }
+        TimestampVector purged = ack.minTimestampVector();
+        if (purged == null) {
+            return;
+        }
+        try {
+            // (the summary is taken before the recipes, which include the recipes of the operations it covers)
+            writeAheadLog.truncate(purged, () -> {
+                TimestampVector covered = summary.clone();
+                return new Checkpoint(purged, covered, recipes.values());
+            });
+        } catch (IOException e) {
+            LSimLogger.log(Level.ERROR, "[ServerData] unable to truncate the write-ahead log: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     private synchronized void purgeTombstones() {
         if (ack == null) {
             return;
@@ -182,6 +476,145 @@ public class ServerData {
         return ack;
     }
 
+    public boolean pooledConnections() {
+        return pooledConnections;
+    }
+
+    public void setPooledConnections(boolean pooledConnections) {
+        this.pooledConnections = pooledConnections;
+    }
+
+    public PeerConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return the lock to hold while the ack is updated together with the row of this
+     * server (or read with it), or while the log is purged according to it
+     */
+    public ReentrantLock getAckLock() {
+        return ackLock;
+    }
+
+    public boolean virtualThreadSessions() {
+        return virtualThreadSessions;
+    }
+
+    public void setVirtualThreadSessions(boolean virtualThreadSessions) {
+        this.virtualThreadSessions = virtualThreadSessions;
+    }
+
+    public boolean symmetricSessions() {
+        return symmetricSessions;
+    }
+
+    public void setSymmetricSessions(boolean symmetricSessions) {
+        this.symmetricSessions = symmetricSessions;
+    }
+
+    /**
+     * @return the executor that runs TSAE sessions on virtual threads
+     */
+    public synchronized ExecutorService getSessionExecutor() {
+        if (sessionExecutor == null) {
+            sessionExecutor = SessionExecutors.newVirtualThreadExecutor();
+        }
+        return sessionExecutor;
+    }
+
+    public int getMaxConcurrentSessions() {
+        return maxConcurrentSessions;
+    }
+
+    public void setMaxConcurrentSessions(int maxConcurrentSessions) {
+        this.maxConcurrentSessions = maxConcurrentSessions;
+    }
+
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public void setSessionTimeout(long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public int getOperationBatchSize() {
+        return operationBatchSize;
+    }
+
+    public void setOperationBatchSize(int operationBatchSize) {
+        this.operationBatchSize = operationBatchSize;
+    }
+
+    public int getCatchUpWindow() {
+        return catchUpWindow;
+    }
+
+    public void setCatchUpWindow(int catchUpWindow) {
+        this.catchUpWindow = catchUpWindow;
+    }
+
+    public void setReorderBufferSize(int reorderBufferSize) {
+        this.reorderBufferSize = reorderBufferSize;
+        if (log != null) {
+            log.setReorderBufferSize(reorderBufferSize);
+        }
+    }
+
+    /**
+     * @return the scheduler that runs the originator sessions of this server
+     */
+    public synchronized SessionScheduler getSessionScheduler() {
+        if (sessionScheduler == null) {
+            Executor executor;
+            if (virtualThreadSessions) {
+                executor = getSessionExecutor();
+            } else {
+                originatorExecutor = SessionExecutors.newFixedThreadExecutor(maxConcurrentSessions);
+                executor = originatorExecutor;
+            }
+            sessionScheduler = new SessionScheduler(executor, maxConcurrentSessions);
+        }
+        return sessionScheduler;
+    }
+
+    public ConnectionSettings getConnectionSettings() {
+        return connectionSettings;
+    }
+
+    public void setStreamBufferSize(int streamBufferSize) {
+        connectionSettings.setStreamBufferSize(streamBufferSize);
+    }
+
+    public void setSocketBufferSize(int socketBufferSize) {
+        connectionSettings.setSocketBufferSize(socketBufferSize);
+    }
+
+    public void setStreamResetPolicy(ConnectionSettings.ResetPolicy resetPolicy, long resetThreshold) {
+        connectionSettings.setResetPolicy(resetPolicy, resetThreshold);
+    }
+
+    /**
+     * @param compressionLevel Deflater level (1 to 9) of the messages compressed (0: messages are not compressed)
+     * @param compressionThreshold minimum length (bytes) of the messages compressed
+     */
+    public void setCompression(int compressionLevel, int compressionThreshold) {
+        connectionSettings.setCompression(compressionLevel, compressionThreshold);
+        peerStates.setCompression(compressionLevel > 0);
+    }
+
+    public void setStreamStatisticsInterval(int statisticsInterval) {
+        connectionSettings.setStatisticsInterval(statisticsInterval);
+    }
+
+    public void setBinaryCodec(boolean binaryCodec) {
+        peerStates.setBinaryCodec(binaryCodec);
+    }
+
+    public PeerStates getPeerStates() {
+        return peerStates;
+    }
+
     public Recipes getRecipes() {
         return recipes;
     }
@@ -221,6 +654,22 @@ public class ServerData {
         this.sessionPeriod = sessionPeriod;
     }
 
+    public void setPersistenceFolder(String persistenceFolder) {
+        this.persistenceFolder = persistenceFolder;
+    }
+
+    public void setPersistenceSegmentSize(long persistenceSegmentSize) {
+        this.persistenceSegmentSize = persistenceSegmentSize;
+    }
+
+    public void setPersistenceCommitDelay(long persistenceCommitDelay) {
+        this.persistenceCommitDelay = persistenceCommitDelay;
+    }
+
+    public void setPersistenceCommitBatch(int persistenceCommitBatch) {
+        this.persistenceCommitBatch = persistenceCommitBatch;
+    }
+
     public TSAESessionOriginatorSide getTSAESessionOriginatorSide() {
         return this.tsae;
     }
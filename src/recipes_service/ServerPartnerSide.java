@@ -24,9 +24,18 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
+import recipes_service.communication.Message;
+import recipes_service.communication.MsgType;
+import recipes_service.communication.PeerConnection;
+import recipes_service.communication.SelectorServer;
+import recipes_service.communication.StreamSessionChannel;
 import recipes_service.tsae.sessions.TSAESessionPartnerSide;
 
 /**
@@ -38,7 +47,10 @@ public class ServerPartnerSide  extends Thread{
 	private int port;
 	private ServerData serverData = null;
 	
-	private ServerSocket serverSocket = null;
+	private ServerSocketChannel serverChannel = null;
+
+	// threads that process the messages of TSAE sessions
+	private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
 	boolean servicePublished = false;
 
@@ -64,9 +76,51 @@ public class ServerPartnerSide  extends Thread{
 		// waits until the Server is ready to receive TSAE sessions from partner servers
 		serverData.waitServerConnected();
 		
-		// accept remote TSAE connections
-		// starts a new thread for each TSAE sessions from a partner server 
+		// serve remote TSAE sessions (the mode is set by sessionExecution in config.properties)
+		if (serverData.virtualThreadSessions()){
+			serveOnVirtualThreads();
+		} else {
+			serveWithSelector();
+		}
+		
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			LSimLogger.log(Level.ERROR,
+					e.getMessage()
+					);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Serves remote TSAE sessions: connections wait in a selector and their
+	 * messages are processed by a fixed pool of workers
+	 */
+	private void serveWithSelector(){
+		try {
+			SelectorServer server = new SelectorServer(serverChannel, WORKERS,
+					channel -> new TSAESessionPartnerSide(channel, serverData),
+					serverData.getConnectionSettings(), (int) serverData.getSessionTimeout(), serverData.getSessionTimeout());
+			// the selector will block for this amount of time.
+			// if server should stop it will close and finish.
+			// In other case it will block again.
+			server.serve(serverData::end, 20000);
+		} catch (IOException e1) {
+			LSimLogger.log(Level.ERROR,
+					e1.getMessage()
+					);
+			e1.printStackTrace();
+		}
+	}
 
+	/**
+	 * Serves remote TSAE sessions with blocking streams: each connection
+	 * (and each session of a pooled connection) runs on a virtual thread
+	 */
+	private void serveOnVirtualThreads(){
+		ExecutorService executor = serverData.getSessionExecutor();
+		ServerSocket serverSocket = serverChannel.socket();
 		while (!serverData.end()){
 			try {
 				// accept will block for this amount of time.
@@ -74,25 +128,45 @@ public class ServerPartnerSide  extends Thread{
 				// if server should stop it will close and finish.
 				// In other case it will block again. 
 				serverSocket.setSoTimeout(20000);
-				new TSAESessionPartnerSide(serverSocket.accept(), this.serverData).start();
+				final Socket socket = serverSocket.accept();
+				executor.execute(() -> serve(socket, executor));
 			} catch (java.net.SocketTimeoutException e){
 				;
-			}catch (IOException e1) {
-				// TODO Auto-generated catch block
+			} catch (RejectedExecutionException e){
+				// TSAE sessions have been stopped
+				break;
+			} catch (IOException e1) {
 				LSimLogger.log(Level.ERROR,
 						e1.getMessage()
 						);
 				e1.printStackTrace();
 			}
 		}
-		
+	}
+
+	/**
+	 * Serves an accepted connection. A pooled connection starts with a MessageConnect
+	 * and carries many sessions, each of them run by the executor.
+	 */
+	private void serve(Socket socket, ExecutorService executor){
+		StreamSessionChannel stream;
+		Message first;
 		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			LSimLogger.log(Level.ERROR,
-					e.getMessage()
-					);
-			e.printStackTrace();
+			stream = new StreamSessionChannel(socket, serverData.getConnectionSettings());
+			first = (Message) stream.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				// already closed
+			}
+			return;
+		}
+
+		if (first.type() == MsgType.CONNECT){
+			new PeerConnection(stream, session -> executor.execute(new TSAESessionPartnerSide(session, null, serverData))).read();
+		} else {
+			new TSAESessionPartnerSide(stream, first, serverData).run();
 		}
 	}
 	
@@ -138,17 +212,17 @@ public class ServerPartnerSide  extends Thread{
 		// starts a thread to deal with TSAE sessions from partner servers 
 
 		try {
-			serverSocket = new ServerSocket();
-			serverSocket.setReuseAddress(true);
-			serverSocket.bind(new InetSocketAddress(port));
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
 //			serverSocket = new ServerSocket(port);
 //			serverSocket.setReuseAddress(true);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			//		e.printStackTrace();
-			if (serverSocket != null) {
+			if (serverChannel != null) {
 				try {
-					serverSocket.close();
+					serverChannel.close();
 				} catch (IOException e1) {
 					/* should not be thrown */
 				}
@@ -0,0 +1,265 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.data.RemoveOperation;
+import recipes_service.tsae.data_structures.ParticipantRegistry;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampCodec;
+import util.WireDecoder;
+import util.WireEncoder;
+
+/**
+ * Compact binary encoding of the messages of a connection, used instead of
+ * Java serialization once both sides have agreed on it (see MessageCodec).
+ * <p>
+ * Each message is a frame with a tag of its MsgType, its session number and
+ * its fields: seqnumbers are varints, host ids and registries of participants
+ * are written once per connection, and no class descriptors are written.
+ * Decoding builds the same objects as Java serialization.
+ * <p>
+ * The encoder and the decoder keep their own state, so a connection can be
+ * written and read by different threads (but not written by two at once).
+ *
+ */
+public class BinaryCodec {
+	// version of the codec implemented by this class
+	public static final int VERSION = 1;
+
+	// message tags
+	private static final int AE_REQUEST = 1;
+	private static final int OPERATION = 2;
+	private static final int END_TSAE = 3;
+	private static final int CONNECT = 4;
+	private static final int OPERATION_BATCH = 5;
+	private static final int END_TSAE_PARTIAL = 6;
+
+	// operation tags
+	private static final int ADD = 1;
+	private static final int REMOVE = 2;
+
+	// flags of an AE_REQUEST
+	private static final int FULL_STATE_REQUIRED = 1;
+	private static final int DELTA = 2;
+	private static final int DIGESTS = 4;
+	private static final int COMPRESSION = 8;
+
+	private final WireEncoder encoder = new WireEncoder();
+	private final WireDecoder decoder = new WireDecoder(ParticipantRegistry::intern);
+
+	/**
+	 * @param compress true to compress the frame if it is large enough (see ObjectOutputStream_DS)
+	 */
+	public void write(ObjectOutputStream_DS out, Message msg, boolean compress) throws IOException{
+		encoder.reset();
+		encode(msg);
+		out.writeFrame(encoder.buffer(), encoder.size(), compress);
+	}
+
+	public Message read(ObjectInputStream_DS in) throws IOException{
+		in.readFrame(decoder);
+		return decode();
+	}
+
+	private void encode(Message msg) throws IOException{
+		switch (msg.type()){
+		case AE_REQUEST:
+			encoder.writeByte(AE_REQUEST);
+			encoder.writeVarInt(msg.getSessionNumber());
+			encodeRequest((MessageAErequest) msg);
+			break;
+		case OPERATION:
+			encoder.writeByte(OPERATION);
+			encoder.writeVarInt(msg.getSessionNumber());
+			encodeOperation(((MessageOperation) msg).getOperation());
+			break;
+		case OPERATION_BATCH:
+			encoder.writeByte(OPERATION_BATCH);
+			encoder.writeVarInt(msg.getSessionNumber());
+			List<Operation> operations = ((MessageOperationBatch) msg).getOperations();
+			encoder.writeVarInt(operations.size());
+			for (Operation op : operations){
+				encodeOperation(op);
+			}
+			break;
+		case END_TSAE:
+			encoder.writeByte(((MessageEndTSAE) msg).isPartial() ? END_TSAE_PARTIAL : END_TSAE);
+			encoder.writeVarInt(msg.getSessionNumber());
+			break;
+		case CONNECT:
+			encoder.writeByte(CONNECT);
+			encoder.writeVarInt(msg.getSessionNumber());
+			break;
+		default:
+			throw new IOException("Message not supported by the binary codec: " + msg);
+		}
+	}
+
+	private Message decode() throws IOException{
+		int tag = decoder.readByte();
+		int sessionNumber = decoder.readVarInt();
+		Message msg;
+		switch (tag){
+		case AE_REQUEST:
+			msg = decodeRequest();
+			break;
+		case OPERATION:
+			msg = new MessageOperation(decodeOperation());
+			break;
+		case OPERATION_BATCH:
+			int size = decoder.readCount();
+			List<Operation> operations = new ArrayList<Operation>(size);
+			for (int i = 0; i < size; i++){
+				operations.add(decodeOperation());
+			}
+			msg = new MessageOperationBatch(operations);
+			break;
+		case END_TSAE:
+			msg = new MessageEndTSAE();
+			break;
+		case END_TSAE_PARTIAL:
+			MessageEndTSAE end = new MessageEndTSAE();
+			end.setPartial(true);
+			msg = end;
+			break;
+		case CONNECT:
+			msg = new MessageConnect();
+			break;
+		default:
+			throw new IOException("Unknown message tag: " + tag);
+		}
+		msg.setSessionNumber(sessionNumber);
+		return msg;
+	}
+
+	private void encodeRequest(MessageAErequest msg){
+		int flags = (msg.isFullStateRequired() ? FULL_STATE_REQUIRED : 0)
+				| (msg.isDelta() ? DELTA : 0)
+				| (msg.hasDigests() ? DIGESTS : 0)
+				| (msg.acceptsCompression() ? COMPRESSION : 0);
+		encoder.writeByte(flags);
+		encoder.writeId(msg.getSender());
+		encoder.writeVarLong(msg.getVersion());
+		encoder.writeVarLong(msg.getKnownVersion());
+		encoder.writeVarInt(msg.getProtocolVersion());
+		encoder.writeVarInt(msg.getCodecVersion());
+		if (msg.isDelta()){
+			encoder.writeVarLong(msg.getBaseVersion());
+			TimestampCodec.writeDelta(encoder, msg.getSummaryDelta());
+			TimestampCodec.writeDelta(encoder, msg.getAckDelta());
+		} else if (!msg.isFullStateRequired()){
+			TimestampCodec.writeVector(encoder, msg.getSummary());
+			TimestampCodec.writeMatrix(encoder, msg.getAck());
+		}
+		if (msg.hasDigests()){
+			encoder.writeLong(msg.getSummaryDigest());
+			encoder.writeLong(msg.getAckDigest());
+		}
+	}
+
+	private MessageAErequest decodeRequest() throws IOException{
+		int flags = decoder.readByte();
+		String sender = decoder.readId();
+		long version = decoder.readVarLong();
+		long knownVersion = decoder.readVarLong();
+		int protocolVersion = decoder.readVarInt();
+		int codecVersion = decoder.readVarInt();
+
+		MessageAErequest msg;
+		if ((flags & DELTA) != 0){
+			long baseVersion = decoder.readVarLong();
+			msg = new MessageAErequest(baseVersion, TimestampCodec.readDelta(decoder), TimestampCodec.readDelta(decoder));
+			msg.setVersion(sender, version, knownVersion);
+		} else if ((flags & FULL_STATE_REQUIRED) != 0){
+			msg = MessageAErequest.fullStateRequest(sender);
+		} else {
+			msg = new MessageAErequest(TimestampCodec.readVector(decoder), TimestampCodec.readMatrix(decoder));
+			msg.setVersion(sender, version, knownVersion);
+		}
+		msg.setProtocolVersion(protocolVersion);
+		msg.setCodecVersion(codecVersion);
+		msg.setCompression((flags & COMPRESSION) != 0);
+		if ((flags & DIGESTS) != 0){
+			long summaryDigest = decoder.readLong();
+			msg.setDigests(summaryDigest, decoder.readLong());
+		}
+		return msg;
+	}
+
+	private void encodeOperation(Operation op) throws IOException{
+		switch (op.getType()){
+		case ADD:
+			Recipe recipe = ((AddOperation) op).getRecipe();
+			encoder.writeByte(ADD);
+			TimestampCodec.writeTimestamp(encoder, op.getTimestamp());
+			encoder.writeString(recipe.getTitle());
+			encoder.writeString(recipe.getRecipe());
+			encoder.writeId(recipe.getAuthor());
+			TimestampCodec.writeTimestamp(encoder, recipe.getTimestamp());
+			break;
+		case REMOVE:
+			RemoveOperation remove = (RemoveOperation) op;
+			encoder.writeByte(REMOVE);
+			TimestampCodec.writeTimestamp(encoder, op.getTimestamp());
+			encoder.writeString(remove.getRecipeTitle());
+			TimestampCodec.writeTimestamp(encoder, remove.getRecipeTimestamp());
+			break;
+		default:
+			throw new IOException("Operation not supported by the binary codec: " + op);
+		}
+	}
+
+	private Operation decodeOperation() throws IOException{
+		int tag = decoder.readByte();
+		switch (tag){
+		case ADD:
+			return decodeAdd();
+		case REMOVE:
+			return decodeRemove();
+		default:
+			throw new IOException("Unknown operation tag: " + tag);
+		}
+	}
+
+	private AddOperation decodeAdd() throws IOException{
+		// (fields are read in the order they were written)
+		Timestamp timestamp = TimestampCodec.readTimestamp(decoder);
+		String title = decoder.readString();
+		String recipe = decoder.readString();
+		String author = decoder.readId();
+		return new AddOperation(new Recipe(title, recipe, author, TimestampCodec.readTimestamp(decoder)), timestamp);
+	}
+
+	private RemoveOperation decodeRemove() throws IOException{
+		Timestamp timestamp = TimestampCodec.readTimestamp(decoder);
+		String title = decoder.readString();
+		return new RemoveOperation(title, TimestampCodec.readTimestamp(decoder), timestamp);
+	}
+}
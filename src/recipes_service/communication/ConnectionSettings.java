@@ -0,0 +1,162 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import communication.ObjectOutputStream_DS;
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+/**
+ * Buffering of the streams and options of the sockets of the connections
+ * between servers.
+ * <p>
+ * Messages are buffered until the session flushes its channel, so TCP_NODELAY
+ * is set in all the sockets: a flushed message is a complete step of the
+ * protocol that the other side is waiting for, and must not be delayed (Nagle).
+ * <p>
+ * The object stream of a connection that carries many sessions keeps every
+ * object written (and so does the stream that reads them) until it is reset.
+ * The reset policy trades the memory of the streams for the bandwidth saved
+ * by writing back-references to the objects kept.
+ * <p>
+ * If compression is set, the messages of the sessions with the peers that
+ * have announced they are able to read them are compressed when they are
+ * at least compressionThreshold bytes long.
+ *
+ */
+public class ConnectionSettings {
+	public static final int DEFAULT_STREAM_BUFFER_SIZE = 8192;
+
+	/**
+	 * When the object stream of a connection that carries many sessions is reset
+	 */
+	public enum ResetPolicy {
+		// before each message
+		MESSAGE,
+		// before the first message written by each session
+		SESSION,
+		// when the stream keeps resetThreshold objects
+		OBJECTS,
+		// when resetThreshold bytes have been written since the last reset
+		BYTES
+	}
+
+	// size (bytes) of the buffers of the object streams (0: not buffered)
+	private volatile int streamBufferSize = DEFAULT_STREAM_BUFFER_SIZE;
+	// size (bytes) of the send and receive buffers of the sockets (0: the default of the OS)
+	private volatile int socketBufferSize = 0;
+	private volatile ResetPolicy resetPolicy = ResetPolicy.MESSAGE;
+	private volatile long resetThreshold = 4096;
+	// Deflater level (1 to 9) of the messages compressed (0: messages are not compressed)
+	private volatile int compressionLevel = 0;
+	private volatile int compressionThreshold = 1024;
+	// statistics of the object streams are logged each statisticsInterval messages (0: not logged)
+	private volatile int statisticsInterval = 0;
+
+	public int getStreamBufferSize(){
+		return streamBufferSize;
+	}
+
+	public void setStreamBufferSize(int streamBufferSize){
+		this.streamBufferSize = streamBufferSize;
+	}
+
+	public int getSocketBufferSize(){
+		return socketBufferSize;
+	}
+
+	public void setSocketBufferSize(int socketBufferSize){
+		this.socketBufferSize = socketBufferSize;
+	}
+
+	public ResetPolicy getResetPolicy(){
+		return resetPolicy;
+	}
+
+	/**
+	 * @param resetThreshold objects or bytes (depending on the policy) after which the stream is reset
+	 */
+	public void setResetPolicy(ResetPolicy resetPolicy, long resetThreshold){
+		this.resetPolicy = resetPolicy;
+		this.resetThreshold = resetThreshold;
+	}
+
+	public int getCompressionLevel(){
+		return compressionLevel;
+	}
+
+	public int getCompressionThreshold(){
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionLevel Deflater level (1: fastest, 9: best compression; 0: no compression)
+	 * @param compressionThreshold minimum length (bytes) of the messages compressed
+	 */
+	public void setCompression(int compressionLevel, int compressionThreshold){
+		this.compressionLevel = compressionLevel;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getStatisticsInterval(){
+		return statisticsInterval;
+	}
+
+	public void setStatisticsInterval(int statisticsInterval){
+		this.statisticsInterval = statisticsInterval;
+	}
+
+	/**
+	 * @param out object stream of a connection that carries many sessions
+	 * @param sessionStart true if the next message is the first one written by its session
+	 * @return true if out has to be reset before the next message
+	 */
+	boolean resetBefore(ObjectOutputStream_DS out, boolean sessionStart){
+		switch (resetPolicy){
+		case SESSION:
+			return sessionStart;
+		case OBJECTS:
+			return out.getHandles() >= resetThreshold;
+		case BYTES:
+			return out.getBytesSinceReset() >= resetThreshold;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Sets the options of a socket before its streams are created
+	 */
+	public void configure(Socket socket){
+		try {
+			socket.setTcpNoDelay(true);
+			if (socketBufferSize > 0){
+				socket.setSendBufferSize(socketBufferSize);
+				socket.setReceiveBufferSize(socketBufferSize);
+			}
+		} catch (SocketException e) {
+			LSimLogger.log(Level.WARN, "[ConnectionSettings] unable to set the options of the socket: " + e.getMessage());
+		}
+	}
+}
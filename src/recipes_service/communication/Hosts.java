@@ -25,6 +25,8 @@ import java.util.List;
 import java.util.Random;
 import java.util.Vector;
 
+import recipes_service.tsae.data_structures.ParticipantRegistry;
+
 
 
 /**
@@ -88,6 +90,13 @@ public class Hosts{
 	public List<String> getIds(){
 		return listIds;
 	}
+
+	/**
+	 * @return the registry that assigns a slot to each participant
+	 */
+	public ParticipantRegistry getRegistry(){
+		return ParticipantRegistry.of(listIds);
+	}
 	public String toString(){
 		return localNode + "-" + nodes.toString();
 	}
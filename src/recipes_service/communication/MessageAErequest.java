@@ -22,6 +22,7 @@ package recipes_service.communication;
 
 import java.io.Serializable;
 
+import recipes_service.tsae.data_structures.TimestampDelta;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
@@ -32,20 +33,144 @@ import recipes_service.tsae.data_structures.TimestampVector;
  */
 public class MessageAErequest extends Message implements Serializable{
 	private static final long serialVersionUID = 3626351664901270873L;
+
+	public static final long NO_VERSION = -1;
+
+	// session protocols. Sequential: the partner sends its operations before its summary and ack,
+	// and the originator sends its operations after receiving them. Symmetric: summaries and acks
+	// are exchanged first, and then both sides send their operations at the same time.
+	public static final int PROTOCOL_SEQUENTIAL = 1;
+	public static final int PROTOCOL_SYMMETRIC = 2;
+
 	private TimestampVector summary;
 	private TimestampMatrix ack;
 
+	// delta encoding: id of the sender and version of the sent summary and ack
+	private String sender = null;
+	private long version = NO_VERSION;
+	// version of the state of the receiver held by the sender (the base for the reply)
+	private long knownVersion = NO_VERSION;
+	// changes from the state baseVersion previously sent to the receiver (NO_VERSION: full state)
+	private long baseVersion = NO_VERSION;
+	private TimestampDelta summaryDelta = null;
+	private TimestampDelta ackDelta = null;
+	// the sender could not rebuild the state received and requests the full state
+	private boolean fullStateRequired = false;
+	// protocol requested by the originator, or accepted by the partner in its reply
+	// (0 in the messages of nodes that do not negotiate it: sequential)
+	private int protocolVersion = PROTOCOL_SEQUENTIAL;
+	// digests of the (whole) summary and ack of the sender: if they match the ones
+	// of the receiver, nodes are in sync and the session ends
+	private boolean withDigests = false;
+	private long summaryDigest;
+	private long ackDigest;
+	// version of the BinaryCodec that the sender is able to read (0: only Java serialization)
+	private int codecVersion = 0;
+	// the sender is able to read compressed messages
+	private boolean compression = false;
+
 	public MessageAErequest (TimestampVector summary, TimestampMatrix ack){
 		this.summary = summary;
 		this.ack = ack;
 	}
-	
+
+	public MessageAErequest (long baseVersion, TimestampDelta summaryDelta, TimestampDelta ackDelta){
+		this.baseVersion = baseVersion;
+		this.summaryDelta = summaryDelta;
+		this.ackDelta = ackDelta;
+	}
+
+	/**
+	 * @return a request to send again the last summary and ack in full
+	 */
+	public static MessageAErequest fullStateRequest(String sender){
+		MessageAErequest msg = new MessageAErequest(null, null);
+		msg.sender = sender;
+		msg.fullStateRequired = true;
+		return msg;
+	}
+
 	public TimestampVector getSummary(){
 		return this.summary;
 	}
 	public TimestampMatrix getAck(){
 		return this.ack;
 	}
+
+	public void setVersion(String sender, long version, long knownVersion){
+		this.sender = sender;
+		this.version = version;
+		this.knownVersion = knownVersion;
+	}
+
+	public String getSender(){
+		return sender;
+	}
+	public long getVersion(){
+		return version;
+	}
+	public long getKnownVersion(){
+		return knownVersion;
+	}
+	public long getBaseVersion(){
+		return baseVersion;
+	}
+	public TimestampDelta getSummaryDelta(){
+		return summaryDelta;
+	}
+	public TimestampDelta getAckDelta(){
+		return ackDelta;
+	}
+	public boolean isDelta(){
+		return baseVersion != NO_VERSION;
+	}
+	public boolean isFullStateRequired(){
+		return fullStateRequired;
+	}
+	public int getProtocolVersion(){
+		return protocolVersion;
+	}
+	public void setProtocolVersion(int protocolVersion){
+		this.protocolVersion = protocolVersion;
+	}
+	public boolean isSymmetric(){
+		return protocolVersion >= PROTOCOL_SYMMETRIC;
+	}
+
+	public void setDigests(long summaryDigest, long ackDigest){
+		this.withDigests = true;
+		this.summaryDigest = summaryDigest;
+		this.ackDigest = ackDigest;
+	}
+	public boolean hasDigests(){
+		return withDigests;
+	}
+	public long getSummaryDigest(){
+		return summaryDigest;
+	}
+	public long getAckDigest(){
+		return ackDigest;
+	}
+	public int getCodecVersion(){
+		return codecVersion;
+	}
+	public void setCodecVersion(int codecVersion){
+		this.codecVersion = codecVersion;
+	}
+	public boolean acceptsCompression(){
+		return compression;
+	}
+	public void setCompression(boolean compression){
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets the summary and ack rebuilt from the delta
+	 */
+	public void setState(TimestampVector summary, TimestampMatrix ack){
+		this.summary = summary;
+		this.ack = ack;
+	}
 	
 	public MsgType type(){
 		return MsgType.AE_REQUEST;
@@ -53,9 +178,21 @@ public class MessageAErequest extends Message implements Serializable{
 	
 	@Override
 	public String toString() {
-		 String str = "MessageAErequest [session: "+getSessionNumber()+", summary=" + summary;
-		 if (ack != null){
-			 str += ", ack=" + ack;
+		 if (fullStateRequired){
+			 return "MessageAErequest [session: "+getSessionNumber()+", full state required]";
+		 }
+		 String str = "MessageAErequest [session: "+getSessionNumber();
+		 if (isSymmetric()){
+			 str += ", symmetric";
+		 }
+		 if (isDelta()){
+			 str += ", version=" + version + ", base=" + baseVersion + ", summaryDelta=" + summaryDelta
+					 + ", ackDelta=" + ackDelta;
+		 } else {
+			 str += ", summary=" + summary;
+			 if (ack != null){
+				 str += ", ack=" + ack;
+			 }
 		 }
 		 return str + "]";
 	}
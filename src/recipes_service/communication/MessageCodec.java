@@ -0,0 +1,49 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+/**
+ * First message of a connection whose next messages are written with the
+ * BinaryCodec. It is written with Java serialization, so a node only sends it
+ * to the peers that have announced the codec version in their messages.
+ *
+ */
+public class MessageCodec extends Message{
+	private static final long serialVersionUID = -1693474218804367187L;
+	private int version;
+
+	public MessageCodec (int version){
+		this.version = version;
+	}
+
+	public int getVersion(){
+		return version;
+	}
+
+	public MsgType type(){
+		return MsgType.CODEC;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageCodec [version=" + version + "]";
+	}
+}
@@ -30,8 +30,19 @@ public class MessageEndTSAE extends Message{
 
 	private static final long serialVersionUID = -3065623993086131816L;
 
+	// the sender has not sent all the operations the receiver misses (they
+	// are sent in the next sessions): its summary must not be taken as received
+	private boolean partial = false;
+
 	public MessageEndTSAE (){
 	}
+
+	public boolean isPartial(){
+		return partial;
+	}
+	public void setPartial(boolean partial){
+		this.partial = partial;
+	}
 	
 	public MsgType type(){
 		return MsgType.END_TSAE;
@@ -39,6 +50,6 @@ public class MessageEndTSAE extends Message{
 
 	@Override
 	public String toString() {
-		return "MessageEndTSAE [session: "+getSessionNumber()+"]";
+		return "MessageEndTSAE [session: "+getSessionNumber()+(partial ? ", partial" : "")+"]";
 	}
 }
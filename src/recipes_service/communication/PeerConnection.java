@@ -0,0 +1,266 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+/**
+ * A long-lived connection to a peer that multiplexes TSAE sessions.
+ * <p>
+ * The side that opens the connection sends a MessageConnect and then opens
+ * sessions on it. Messages are routed by their session number: a reader thread
+ * puts each received message in the queue of its session. On the accepting
+ * side, an AE_REQUEST with an unknown session number opens a new session that
+ * is handed to the acceptor.
+ * <p>
+ * Writes are serialized on the stream and the stream is reset before each
+ * message, so objects written are not kept by the stream of a long-lived connection.
+ *
+ */
+public class PeerConnection {
+	// put in the queue of each session when the connection is closed
+	private static final Object CLOSED = new Object();
+
+	private final StreamSessionChannel stream;
+	private final ConcurrentHashMap<Integer, BlockingQueue<Object>> sessions = new ConcurrentHashMap<Integer, BlockingQueue<Object>>();
+	// receives the sessions opened by the other side (null on the side that opens sessions)
+	private final Consumer<SessionChannel> acceptor;
+	private volatile boolean open = true;
+	private volatile boolean retired = false;
+	// (a ReentrantLock, as synchronized would pin the carrier of a virtual thread blocked writing)
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * @param stream streams of the connection (the MessageConnect already read on the accepting side)
+	 * @param acceptor receives the sessions opened by the other side, or null
+	 */
+	public PeerConnection(StreamSessionChannel stream, Consumer<SessionChannel> acceptor){
+		this.stream = stream;
+		this.acceptor = acceptor;
+	}
+
+	/**
+	 * Opens a connection to host and starts its reader thread
+	 *
+	 * @param codecVersion version of the binary codec to use (0: Java serialization)
+	 * @param settings options of the socket and size of the buffers of its streams
+	 * @param timeout milliseconds to wait for the connection and for the header of the stream of host
+	 */
+	public static PeerConnection connect(Host host, int codecVersion, ConnectionSettings settings, int timeout) throws IOException{
+		Socket socket = new Socket();
+		PeerConnection connection;
+		try {
+			// do not wait forever for a peer that does not accept the connection
+			socket.connect(new InetSocketAddress(host.getAddress(), host.getPort()), timeout);
+			// do not wait forever for the header of the stream of a peer that does not answer
+			socket.setSoTimeout(timeout);
+			connection = new PeerConnection(new StreamSessionChannel(socket, settings), null);
+			socket.setSoTimeout(0);
+			if (codecVersion > 0){
+				connection.stream.useBinaryCodec(codecVersion);
+			}
+			connection.write(new MessageConnect(), true, false);
+			connection.flush();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		Thread reader = new Thread(connection::read, "PeerConnectionReader-" + host.getId());
+		reader.setDaemon(true);
+		reader.start();
+		return connection;
+	}
+
+	/**
+	 * Reads messages and routes them to their sessions until the connection is closed
+	 */
+	public void read(){
+		try {
+			while (open){
+				Message msg = (Message) stream.readObject();
+				BlockingQueue<Object> queue = sessions.get(msg.getSessionNumber());
+				if (queue == null && acceptor != null && msg.type() == MsgType.AE_REQUEST){
+					Channel session = new Channel(msg.getSessionNumber());
+					session.queue.add(msg);
+					acceptor.accept(session);
+				} else if (queue != null){
+					queue.add(msg);
+				}
+				// otherwise the session has already ended: the message is discarded
+			}
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			LSimLogger.log(Level.TRACE, "[PeerConnection] connection closed: " + e.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * @return false if the connection has failed or has been closed
+	 */
+	public boolean isOpen(){
+		return open && !stream.getSocket().isClosed();
+	}
+
+	/**
+	 * @return version of the binary codec used by the connection (0: Java serialization)
+	 */
+	public int getCodecVersion(){
+		return stream.getCodecVersion();
+	}
+
+	/**
+	 * Closes the connection as soon as it has no sessions. No more sessions
+	 * are opened on it (it has been replaced in the pool).
+	 */
+	public void retire(){
+		retired = true;
+		if (sessions.isEmpty()){
+			close();
+		}
+	}
+
+	public SessionChannel openSession(int sessionNumber) throws IOException{
+		if (!isOpen()){
+			throw new IOException("Connection closed");
+		}
+		return new Channel(sessionNumber);
+	}
+
+	/**
+	 * Closes the connection. Pending and future reads of its sessions fail.
+	 */
+	public void close(){
+		open = false;
+		stream.close();
+		for (BlockingQueue<Object> queue : sessions.values()){
+			queue.add(CLOSED);
+		}
+	}
+
+	/**
+	 * @param sessionStart true if obj is the first message written by its session
+	 * @param compress true if the other side of the session is able to read compressed messages
+	 */
+	private void write(Object obj, boolean sessionStart, boolean compress) throws IOException{
+		writeLock.lock();
+		try {
+			stream.writeMessage(obj, sessionStart, compress, "PeerConnection");
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the messages written by all the sessions
+	 */
+	private void flush() throws IOException{
+		writeLock.lock();
+		try {
+			stream.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private class Channel implements SessionChannel {
+		private final int sessionNumber;
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+		private volatile boolean started = false;
+		private volatile boolean compression = false;
+		// (0: no deadline)
+		private long deadline = 0;
+
+		private Channel(int sessionNumber){
+			this.sessionNumber = sessionNumber;
+			sessions.put(sessionNumber, queue);
+			if (!open){
+				queue.add(CLOSED);
+			}
+		}
+
+		public void writeObject(Object obj) throws IOException{
+			write(obj, !started, compression);
+			started = true;
+		}
+
+		public void setCompression(boolean compression){
+			this.compression = compression;
+		}
+
+		public void flush() throws IOException{
+			PeerConnection.this.flush();
+		}
+
+		public Object readObject() throws IOException{
+			Object obj;
+			try {
+				if (deadline > 0){
+					obj = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+					if (obj == null){
+						throw new SocketTimeoutException("Session " + sessionNumber + " deadline expired");
+					}
+				} else {
+					obj = queue.take();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading from session " + sessionNumber);
+			}
+			if (obj == CLOSED){
+				// following reads fail too
+				queue.add(CLOSED);
+				throw new IOException("Connection closed");
+			}
+			return obj;
+		}
+
+		public void setDeadline(long deadline){
+			this.deadline = deadline;
+		}
+
+		public void close(){
+			sessions.remove(sessionNumber, queue);
+			if (retired && sessions.isEmpty()){
+				PeerConnection.this.close();
+			}
+		}
+	}
+}
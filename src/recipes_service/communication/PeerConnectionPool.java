@@ -0,0 +1,93 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a PeerConnection to each peer and opens sessions on it.
+ * A connection that has failed is replaced by a new one when the next
+ * session with the peer is opened, and so is a connection that uses an
+ * older codec than the one the peer supports (it is closed once its
+ * sessions have ended).
+ *
+ */
+public class PeerConnectionPool {
+	private final ConcurrentHashMap<String, PeerConnection> connections = new ConcurrentHashMap<String, PeerConnection>();
+	// one lock per peer, so that connecting to a peer does not delay the sessions with the others
+	private final ConcurrentHashMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+	private final ConnectionSettings settings;
+
+	/**
+	 * @param settings options of the sockets and size of the buffers of the streams of the connections
+	 */
+	public PeerConnectionPool(ConnectionSettings settings){
+		this.settings = settings;
+	}
+
+	/**
+	 * @param host the partner
+	 * @param sessionNumber number of the new session
+	 * @param codecVersion version of the binary codec to use in a new connection (0: Java serialization)
+	 * @param timeout milliseconds to wait for a new connection to be established
+	 * @return a session on the connection to host, connecting to it if needed
+	 * @throws IOException if unable to connect
+	 */
+	public SessionChannel openSession(Host host, int sessionNumber, int codecVersion, int timeout) throws IOException{
+		return connection(host, codecVersion, timeout).openSession(sessionNumber);
+	}
+
+	private PeerConnection connection(Host host, int codecVersion, int timeout) throws IOException{
+		String id = host.getId();
+		PeerConnection connection = connections.get(id);
+		if (connection != null && connection.isOpen() && connection.getCodecVersion() >= codecVersion){
+			return connection;
+		}
+
+		ReentrantLock lock = locks.computeIfAbsent(id, k -> new ReentrantLock());
+		lock.lock();
+		try {
+			connection = connections.get(id);
+			if (connection == null || !connection.isOpen() || connection.getCodecVersion() < codecVersion){
+				if (connection != null){
+					connection.retire();
+				}
+				connection = PeerConnection.connect(host, codecVersion, settings, timeout);
+				connections.put(id, connection);
+			}
+			return connection;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes all the connections
+	 */
+	public void closeAll(){
+		for (PeerConnection connection : connections.values()){
+			connection.close();
+		}
+		connections.clear();
+	}
+}
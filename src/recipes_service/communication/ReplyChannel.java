@@ -0,0 +1,53 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+
+/**
+ * Channel through which a TSAE session sends its messages. A session fed
+ * with its messages by a SessionHandler only needs to write to it.
+ *
+ */
+public interface ReplyChannel {
+
+	/**
+	 * Writes a message. It may not be sent until the channel is flushed.
+	 */
+	public void writeObject(Object obj) throws IOException;
+
+	/**
+	 * @param compression true if the other side of the session has announced that
+	 * it is able to read compressed messages: the large messages written from now
+	 * on are compressed (if this node compresses messages)
+	 */
+	public void setCompression(boolean compression);
+
+	/**
+	 * Sends the messages written (to be called at the end of each step of a protocol)
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Ends the session. Messages received afterwards for the session are discarded.
+	 */
+	public void close();
+}
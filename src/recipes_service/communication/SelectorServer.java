@@ -0,0 +1,447 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+/**
+ * Serves the connections of a server socket with a selector and a fixed pool
+ * of worker threads, whatever the number of connections and sessions.
+ * <p>
+ * A connection waiting for messages is only registered in the selector. When
+ * a message arrives, the connection is handed to a worker that reads the
+ * received messages and passes each of them to its session; then the
+ * connection is registered again. Messages are read with the object streams,
+ * so the channel is in blocking mode while a worker serves it. A worker only
+ * reads when bytes have been received, but a peer may stall in the middle of
+ * a message (or of the header of the stream): reads fail after readTimeout,
+ * and the connection is closed, so that the worker is released. Likewise, a peer
+ * may stop reading while a worker writes to it: the selector thread closes the
+ * channel of a connection whose write has lasted more than readTimeout, so that
+ * the blocked write fails and the worker is released. As a connection
+ * is served by one worker at a time, the messages of a session are processed
+ * in order and a session is never run by two threads at once.
+ * <p>
+ * A pooled connection (that starts with a MessageConnect) carries many sessions:
+ * messages are routed by session number, and an AE_REQUEST with an unknown
+ * session number opens a new session. Any other connection carries a single
+ * session and is closed when it ends.
+ * <p>
+ * Each session has a deadline of sessionTimeout from its first message. An
+ * originator that gives up (or fails) before the end of a session sends no
+ * more messages for it, so a session whose deadline has expired is ended
+ * (SessionHandler.expire) and evicted: by the worker that serves its
+ * connection, or by the selector thread (every sweepInterval) if the
+ * connection is idle.
+ *
+ */
+public class SelectorServer {
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	// creates the session that is fed with the messages of a new session
+	private final Function<ReplyChannel, SessionHandler> sessions;
+	private final ConnectionSettings settings;
+	private final int readTimeout;
+	private final long sessionTimeout;
+	// the idle connections are swept at most once each sweepInterval
+	private final long sweepInterval;
+	private long nextSweep;
+	// the writes of the connections being served are checked at most once each writeCheckInterval (0: never)
+	private final long writeCheckInterval;
+	private long nextWriteCheck;
+
+	// connections served by a worker that are waiting to be registered again
+	private final ConcurrentLinkedQueue<Connection> served = new ConcurrentLinkedQueue<Connection>();
+	// connections being served by a worker
+	private final Set<Connection> serving = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param serverChannel channel where connections are accepted
+	 * @param workers number of worker threads
+	 * @param sessions creates the handler of a new session given the channel to reply to the originator
+	 * @param settings options of the sockets and size of the buffers of the streams of the connections
+	 * @param readTimeout maximum time (milliseconds) a worker waits for the rest of a message,
+	 * or for a write to the peer to complete (0: no limit)
+	 * @param sessionTimeout maximum time (milliseconds) a session lasts from its first message
+	 */
+	public SelectorServer(ServerSocketChannel serverChannel, int workers, Function<ReplyChannel, SessionHandler> sessions,
+			ConnectionSettings settings, int readTimeout, long sessionTimeout) throws IOException{
+		this.selector = Selector.open();
+		this.serverChannel = serverChannel;
+		this.workers = Executors.newFixedThreadPool(workers);
+		this.sessions = sessions;
+		this.settings = settings;
+		this.readTimeout = readTimeout;
+		this.sessionTimeout = sessionTimeout;
+		this.sweepInterval = Math.max(1, sessionTimeout / 2);
+		this.nextSweep = System.currentTimeMillis() + sweepInterval;
+		this.writeCheckInterval = readTimeout > 0 ? Math.max(1, readTimeout / 2) : 0;
+		this.nextWriteCheck = System.currentTimeMillis() + writeCheckInterval;
+
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serves connections until stop returns true
+	 *
+	 * @param stop checked (at least) each timeout milliseconds
+	 */
+	public void serve(BooleanSupplier stop, long timeout){
+		while (!stop.getAsBoolean()){
+			try {
+				// (a blocked write is not seen by the selector: wake up to check it)
+				selector.select(writeCheckInterval > 0 ? Math.min(timeout, writeCheckInterval) : timeout);
+
+				List<Connection> ready = new ArrayList<Connection>();
+				while (!selector.selectedKeys().isEmpty()){
+					for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ){
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()){
+							continue;
+						}
+						if (key.isAcceptable()){
+							accept();
+						} else if (key.isReadable()){
+							key.cancel();
+							ready.add((Connection) key.attachment());
+						}
+					}
+					// deregisters the cancelled keys, so that their channels can be switched to blocking mode
+					selector.selectNow();
+				}
+				for (Connection readable : ready){
+					workers.execute(readable);
+				}
+
+				// (after selectNow, as it clears the wakeup of a worker that has just added a connection)
+				Connection connection;
+				while ((connection = served.poll()) != null){
+					connection.register();
+				}
+
+				sweep();
+				checkWrites();
+			} catch (IOException e) {
+				LSimLogger.log(Level.ERROR, "[SelectorServer] " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		close();
+	}
+
+	private void accept() throws IOException{
+		SocketChannel channel = serverChannel.accept();
+		if (channel != null){
+			// the object streams are created by a worker, as they exchange their headers
+			workers.execute(new Connection(channel));
+		}
+	}
+
+	/**
+	 * Evicts the expired sessions of the idle connections (the ones registered
+	 * in the selector are not being served by any worker)
+	 */
+	private void sweep(){
+		long now = System.currentTimeMillis();
+		if (now < nextSweep){
+			return;
+		}
+		nextSweep = now + sweepInterval;
+		for (SelectionKey key : selector.keys()){
+			if (key.isValid() && key.attachment() instanceof Connection){
+				((Connection) key.attachment()).evict(now);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channels of the connections whose worker has been writing for more
+	 * than readTimeout (a peer that does not read): the blocked write fails and the
+	 * worker closes the connection
+	 */
+	private void checkWrites(){
+		if (writeCheckInterval == 0){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < nextWriteCheck){
+			return;
+		}
+		nextWriteCheck = now + writeCheckInterval;
+		for (Connection connection : serving){
+			long deadline = connection.writeDeadline;
+			if (deadline > 0 && deadline <= now){
+				LSimLogger.log(Level.TRACE, "[SelectorServer] write deadline expired: closing the connection");
+				connection.abort();
+			}
+		}
+	}
+
+	/**
+	 * Closes the selector and the connections. Pending sessions fail.
+	 */
+	private void close(){
+		workers.shutdown();
+		for (SelectionKey key : selector.keys()){
+			if (key.attachment() instanceof Connection){
+				((Connection) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final SocketChannel channel;
+		private StreamSessionChannel stream;
+		// (in the order the sessions started, that is the order of their deadlines)
+		private final Map<Integer, Session> handlers = new LinkedHashMap<Integer, Session>();
+		private boolean pooled = false;
+		private boolean open = true;
+		// (as System.currentTimeMillis, 0: not writing)
+		private volatile long writeDeadline = 0;
+
+		private Connection(SocketChannel channel){
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads and processes the messages already received (run by a worker)
+		 */
+		public void run(){
+			serving.add(this);
+			try {
+				channel.configureBlocking(true);
+				boolean created = stream == null;
+				if (created){
+					channel.socket().setSoTimeout(readTimeout);
+					stream = new StreamSessionChannel(channel.socket(), settings);
+				}
+				evict(System.currentTimeMillis());
+				// (the first messages may have been buffered with the header of the stream)
+				if (open && (!created || stream.hasAvailable())){
+					// messages buffered by the stream are not seen by the selector: read them all
+					do {
+						receive((Message) stream.readObject());
+					} while (open && stream.hasAvailable());
+				}
+
+				if (open){
+					channel.configureBlocking(false);
+					served.add(this);
+					selector.wakeup();
+				}
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				LSimLogger.log(Level.TRACE, "[SelectorServer] connection closed: " + e.getMessage());
+				close();
+			} catch (RuntimeException e) {
+				LSimLogger.log(Level.ERROR, "[SelectorServer] " + e.getMessage());
+				e.printStackTrace();
+				close();
+			} finally {
+				serving.remove(this);
+			}
+		}
+
+		private void receive(Message msg) throws IOException{
+			if (msg.type() == MsgType.CONNECT){
+				pooled = true;
+				return;
+			}
+
+			int sessionNumber = msg.getSessionNumber();
+			Session session = handlers.get(sessionNumber);
+			if (session == null){
+				if (msg.type() != MsgType.AE_REQUEST){
+					// the session has already ended (or expired): the message is discarded
+					return;
+				}
+				session = new Session(sessions.apply(new Channel(sessionNumber)), System.currentTimeMillis() + sessionTimeout);
+				handlers.put(sessionNumber, session);
+			}
+
+			if (!session.handler.receive(msg)){
+				handlers.remove(sessionNumber);
+				if (!pooled){
+					close();
+				}
+			}
+		}
+
+		/**
+		 * @param sessionStart true if obj is the first message written by its session
+		 * @param compress true if the other side of the session is able to read compressed messages
+		 */
+		private void write(Object obj, boolean sessionStart, boolean compress) throws IOException{
+			startWrite();
+			try {
+				if (pooled){
+					// do not keep all the objects written in a long-lived connection
+					stream.writeMessage(obj, sessionStart, compress, "SelectorServer");
+				} else {
+					stream.writeObject(obj, compress);
+				}
+			} finally {
+				writeDeadline = 0;
+			}
+		}
+
+		private void flush() throws IOException{
+			startWrite();
+			try {
+				stream.flush();
+			} finally {
+				writeDeadline = 0;
+			}
+		}
+
+		private void startWrite(){
+			if (readTimeout > 0){
+				writeDeadline = System.currentTimeMillis() + readTimeout;
+			}
+		}
+
+		/**
+		 * Expires and removes the sessions whose deadline has expired. A connection
+		 * that carries a single session is closed when it expires.
+		 */
+		private void evict(long now){
+			boolean expired = false;
+			for (Iterator<Map.Entry<Integer, Session>> it = handlers.entrySet().iterator(); it.hasNext(); ){
+				Map.Entry<Integer, Session> session = it.next();
+				if (session.getValue().deadline > now){
+					break;
+				}
+				it.remove();
+				LSimLogger.log(Level.TRACE, "[SelectorServer] session " + session.getKey() + " expired");
+				session.getValue().handler.expire();
+				expired = true;
+			}
+			if (expired && !pooled){
+				close();
+			}
+		}
+
+		/**
+		 * Registers the connection to wait for its next message (run by the selector thread)
+		 */
+		private void register(){
+			try {
+				channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the channel of a connection being served (run by the selector thread):
+		 * the worker fails and closes the connection
+		 */
+		private void abort(){
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		private void close(){
+			open = false;
+			handlers.clear();
+			if (stream != null){
+				stream.close();
+			} else {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		private class Session {
+			private final SessionHandler handler;
+			// (as System.currentTimeMillis)
+			private final long deadline;
+
+			private Session(SessionHandler handler, long deadline){
+				this.handler = handler;
+				this.deadline = deadline;
+			}
+		}
+
+		/**
+		 * Channel a session replies through. Its messages are passed to its handler.
+		 */
+		private class Channel implements ReplyChannel {
+			private final int sessionNumber;
+			private boolean started = false;
+			private boolean compression = false;
+
+			private Channel(int sessionNumber){
+				this.sessionNumber = sessionNumber;
+			}
+
+			public void writeObject(Object obj) throws IOException{
+				write(obj, !started, compression);
+				started = true;
+			}
+
+			public void setCompression(boolean compression){
+				this.compression = compression;
+			}
+
+			public void flush() throws IOException{
+				Connection.this.flush();
+			}
+
+			public void close(){
+				handlers.remove(sessionNumber);
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+/**
+ * A session that has a connection of its own: the connection is closed
+ * when the session ends.
+ * <p>
+ * Messages are written with Java serialization unless the side that opened
+ * the connection has switched it to the BinaryCodec (useBinaryCodec). The
+ * other side switches when it reads the MessageCodec that starts the connection.
+ *
+ */
+public class StreamSessionChannel implements SessionChannel {
+	private final Socket socket;
+	private final ObjectOutputStream_DS out;
+	private final ObjectInputStream_DS in;
+	// (0: no deadline)
+	private long deadline = 0;
+	// (null: Java serialization)
+	private volatile BinaryCodec codec = null;
+	private volatile int codecVersion = 0;
+	private final ConnectionSettings settings;
+	private volatile boolean compression = false;
+
+	/**
+	 * @param settings options of the socket and size of the buffers of its streams
+	 */
+	public StreamSessionChannel(Socket socket, ConnectionSettings settings) throws IOException{
+		this.socket = socket;
+		this.settings = settings;
+		settings.configure(socket);
+		// the output stream is created first, as the input stream waits for the header written by the other side
+		this.out = new ObjectOutputStream_DS(socket.getOutputStream(), settings.getStreamBufferSize());
+		this.in = new ObjectInputStream_DS(socket.getInputStream(), settings.getStreamBufferSize());
+		this.out.setSampleInterval(settings.getStatisticsInterval());
+		if (settings.getCompressionLevel() > 0){
+			this.out.setCompression(settings.getCompressionLevel(), settings.getCompressionThreshold());
+		}
+	}
+
+	public Socket getSocket(){
+		return socket;
+	}
+
+	ObjectOutputStream_DS getOutputStream(){
+		return out;
+	}
+
+	ObjectInputStream_DS getInputStream(){
+		return in;
+	}
+
+	/**
+	 * Writes the next messages of the connection with the binary codec.
+	 * Only to be called before any other message is written.
+	 *
+	 * @param version version of the codec supported by the other side
+	 */
+	public void useBinaryCodec(int version) throws IOException{
+		out.writeObject(new MessageCodec(version));
+		codecVersion = version;
+		codec = new BinaryCodec();
+	}
+
+	/**
+	 * @return version of the binary codec used by the connection (0: Java serialization)
+	 */
+	public int getCodecVersion(){
+		return codecVersion;
+	}
+
+	public void writeObject(Object obj) throws IOException{
+		writeObject(obj, compression);
+	}
+
+	/**
+	 * @param compress true if the other side is able to read compressed messages
+	 */
+	void writeObject(Object obj, boolean compress) throws IOException{
+		BinaryCodec binary = codec;
+		if (binary != null){
+			binary.write(out, (Message) obj, compress);
+		} else {
+			out.writeObject(obj, compress);
+		}
+	}
+
+	public void setCompression(boolean compression){
+		this.compression = compression;
+	}
+
+	/**
+	 * Writes a message of a connection that carries many sessions: the output
+	 * stream is reset before it according to the reset policy (so that the
+	 * reset is read with the message). The binary codec keeps no objects.
+	 *
+	 * @param sessionStart true if obj is the first message written by its session
+	 * @param compress true if the other side of the session is able to read compressed messages
+	 * @param connection name of the connection (for the statistics)
+	 */
+	void writeMessage(Object obj, boolean sessionStart, boolean compress, String connection) throws IOException{
+		if (codec == null && settings.resetBefore(out, sessionStart)){
+			out.reset();
+		}
+		writeObject(obj, compress);
+
+		int interval = settings.getStatisticsInterval();
+		if (interval > 0 && out.getObjectsWritten() % interval == 0){
+			LSimLogger.log(Level.DEBUG, "[" + connection + "] stream statistics: " + out.statistics());
+		}
+	}
+
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	/**
+	 * @return true if there are received bytes (buffered or not) that can be read without blocking
+	 */
+	boolean hasAvailable() throws IOException{
+		return in.available() > 0;
+	}
+
+	public Object readObject() throws IOException, ClassNotFoundException{
+		if (deadline > 0){
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0){
+				throw new SocketTimeoutException("Session deadline expired");
+			}
+			socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+		}
+		BinaryCodec binary = codec;
+		Object obj = binary != null ? binary.read(in) : in.readObject();
+
+		// the other side switches the connection to the binary codec
+		if (obj instanceof MessageCodec && binary == null){
+			int version = ((MessageCodec) obj).getVersion();
+			if (version > BinaryCodec.VERSION){
+				throw new IOException("Unsupported binary codec version: " + version);
+			}
+			codecVersion = version;
+			codec = new BinaryCodec();
+			return readObject();
+		}
+		return obj;
+	}
+
+	public void setDeadline(long deadline){
+		this.deadline = deadline;
+	}
+
+	public void close(){
+		if (settings.getStatisticsInterval() > 0){
+			LSimLogger.log(Level.DEBUG, "[StreamSessionChannel] stream statistics: " + out.statistics() + " " + in.statistics());
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		out.close();
+		in.close();
+	}
+}
@@ -20,8 +20,11 @@
 
 package recipes_service.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+import recipes_service.tsae.data_structures.ParticipantRegistry;
 import recipes_service.tsae.data_structures.Timestamp;
 
 /**
@@ -40,7 +43,7 @@ public class Recipe implements Serializable{
 	public Recipe (String title, String recipe, String author, Timestamp timestamp){
 		this.title = title;
 		this.recipe = recipe;
-		this.author = author;
+		this.author = ParticipantRegistry.intern(author);
 		this.timestamp = timestamp;
 	}
 	
@@ -93,6 +96,14 @@ public class Recipe implements Serializable{
 		return true;
 	}
 
+	/**
+	 * authors received from other nodes are replaced by the local interned instance
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		author = ParticipantRegistry.intern(author);
+	}
+
 	public String toString(){
 		return "[" + this.title + ", " + this.recipe + ", " + this.author + "]";
 	}
@@ -20,12 +20,30 @@
 
 package recipes_service.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
 
 /**
+ * The recipes are kept in a concurrent sorted map, so lookups (get and
+ * contains) take no lock and never delay the writers. Writers take the write
+ * lock, which keeps the map and the index of titles consistent.
+ * <p>
+ * The titles are also kept in a dense array (a removed title is replaced by
+ * the last one) with the slot of each title, so that a random title is
+ * picked in O(1). As reading a slot of the array is safe while it is being
+ * modified, random titles are read optimistically (validated afterwards).
+ *
  * @author Joan-Manuel Marques
  * December 2012
  *
@@ -33,43 +51,178 @@ import java.util.TreeMap;
 public class Recipes implements Serializable{
 	
 	private static final long serialVersionUID = -8117147242301640951L;
-	private TreeMap<String,Recipe> recipes = null;
+	private ConcurrentSkipListMap<String,Recipe> recipes = null;
+	
+	private transient StampedLock lock = new StampedLock();
+	
+	// index of the titles: titles[0..size) and the slot of each title in titles
+	private transient String[] titles;
+	private transient int size;
+	private transient HashMap<String,Integer> slots;
 	
 	static Random rnd = new Random();
 	
 	
 	public Recipes(){
-		this.recipes = new TreeMap<String,Recipe> (); 
+		this.recipes = new ConcurrentSkipListMap<String,Recipe> (); 
+		buildIndex();
+	}
+	
+	private void buildIndex(){
+		titles = new String[Math.max(16, recipes.size())];
+		size = 0;
+		slots = new HashMap<String,Integer>();
+		for (String title : recipes.keySet()){
+			index(title);
+		}
+	}
+	
+	/**
+	 * Adds title (a new title) to the index
+	 */
+	private void index(String title){
+		if (size == titles.length){
+			titles = Arrays.copyOf(titles, size * 2);
+		}
+		slots.put(title, size);
+		titles[size++] = title;
+	}
+	
+	/**
+	 * Removes title from the index, moving the last title to its slot
+	 */
+	private void unindex(String title){
+		Integer slot = slots.remove(title);
+		if (slot == null){
+			return;
+		}
+		String last = titles[--size];
+		titles[size] = null;
+		if (slot < size){
+			titles[slot] = last;
+			slots.put(last, slot);
+		}
+	}
+	
+	public void add(Recipe recipe){
+		long stamp = lock.writeLock();
+		try {
+			if (recipes.put(recipe.getTitle(),recipe) == null){
+				index(recipe.getTitle());
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * Adds all the recipes at once
+	 */
+	public void addAll(Collection<Recipe> recipes){
+		long stamp = lock.writeLock();
+		try {
+			for (Recipe recipe : recipes){
+				if (this.recipes.put(recipe.getTitle(), recipe) == null){
+					index(recipe.getTitle());
+				}
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 	
-	public synchronized void add(Recipe recipe){
-		recipes.put(recipe.getTitle(),recipe);
+	public void remove(String recipeTitle){
+		long stamp = lock.writeLock();
+		try {
+			if (recipes.remove(recipeTitle) != null){
+				unindex(recipeTitle);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 	
-	public synchronized void remove(String recipeTitle){
-		recipes.remove(recipeTitle);
+	/**
+	 * Removes all the recipes at once
+	 */
+	public void removeAll(Collection<String> recipeTitles){
+		long stamp = lock.writeLock();
+		try {
+			for (String recipeTitle : recipeTitles){
+				if (recipes.remove(recipeTitle) != null){
+					unindex(recipeTitle);
+				}
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
-	public synchronized Recipe get(String recipeTitle){
+	public Recipe get(String recipeTitle){
 		return recipes.get(recipeTitle);
 	}
-	public synchronized boolean contains(String recipeTitle){
+	public boolean contains(String recipeTitle){
 		return recipes.containsKey(recipeTitle);
 	}
 	
-	public synchronized String getRandomRecipeTitle(){
-		if (recipes.isEmpty())
-			return null;
-		int n= (((int)(rnd.nextDouble() *10000))%recipes.size());
-		
-		Iterator<String> it = recipes.keySet().iterator();
-		String result = it.next();
-		for (int i = 0 ; i < n; i++){
-			result = it.next();
+	/**
+	 * @return a copy of all the recipes
+	 */
+	public List<Recipe> values(){
+		long stamp = lock.readLock();
+		try {
+			return new ArrayList<Recipe>(recipes.values());
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/**
+	 * @return a title picked uniformly at random, or null if there are no recipes
+	 */
+	public String getRandomRecipeTitle(){
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0){
+			String[] t = titles;
+			int n = size;
+			String title = n == 0 || n > t.length ? null : t[rnd.nextInt(n)];
+			if (lock.validate(stamp)){
+				return title;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return size == 0 ? null : titles[rnd.nextInt(size)];
+		} finally {
+			lock.unlockRead(stamp);
 		}
-		return result;
 	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		long stamp = lock.readLock();
+		try {
+			out.defaultWriteObject();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lock = new StampedLock();
+		buildIndex();
+	}
+	
 	@Override
-	public synchronized boolean equals(Object obj) {
+	public boolean equals(Object obj) {
+		long stamp = lock.readLock();
+		try {
+			return sameRecipes(obj);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	private boolean sameRecipes(Object obj) {
 		if (this == obj)
 			return true;
 		if (obj == null)
@@ -97,15 +250,25 @@ public class Recipes implements Serializable{
 		}
 	}
 
-	public synchronized String toString(){
-		return recipes.toString();
+	public String toString(){
+		long stamp = lock.readLock();
+		try {
+			return recipes.toString();
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 	
-	public synchronized Recipes clone(){
+	public Recipes clone(){
 		Recipes clone = new Recipes();
 		
-		for (Iterator<Recipe> it = recipes.values().iterator(); it.hasNext();){
-			clone.add(it.next());
+		long stamp = lock.readLock();
+		try {
+			for (Iterator<Recipe> it = recipes.values().iterator(); it.hasNext();){
+				clone.add(it.next());
+			}
+		} finally {
+			lock.unlockRead(stamp);
 		}
 		return clone;
 	}
@@ -131,6 +131,18 @@ public class SendArgsToTestServer {
 			params.put("sessionPeriod",properties.getProperty("sessionPeriod"));
 			params.put("numSes",properties.getProperty("numSes"));
 			params.put("propDegree",properties.getProperty("propDegree"));
+			params.put("maxConcurrentSessions",properties.getProperty("maxConcurrentSessions", "4"));
+			params.put("sessionTimeout",properties.getProperty("sessionTimeout", "30"));
+			params.put("operationBatchSize",properties.getProperty("operationBatchSize", "64"));
+			params.put("catchUpWindow",properties.getProperty("catchUpWindow", "0"));
+			params.put("reorderBufferSize",properties.getProperty("reorderBufferSize", "4096"));
+			params.put("streamBufferSize",properties.getProperty("streamBufferSize", "8192"));
+			params.put("socketBufferSize",properties.getProperty("socketBufferSize", "0"));
+			params.put("streamReset",properties.getProperty("streamReset", "message"));
+			params.put("streamResetThreshold",properties.getProperty("streamResetThreshold", "4096"));
+			params.put("streamStatistics",properties.getProperty("streamStatistics", "0"));
+			params.put("compressionLevel",properties.getProperty("compressionLevel", "0"));
+			params.put("compressionThreshold",properties.getProperty("compressionThreshold", "1024"));
 			params.put("simulationStop",properties.getProperty("simulationStop"));
 			params.put("executionStop",properties.getProperty("executionStop"));
 			params.put("simulationDelay",properties.getProperty("simulationDelay"));
@@ -148,6 +160,34 @@ public class SendArgsToTestServer {
 			params.put("purge",purge);
 			params.put("executionMode",executionMode);
 
+			// pooled connections (optional): only sent when activated
+			if (("On").equals(properties.getProperty("pooledConnections"))){
+				params.put("pooledConnections","On");
+			}
+
+			// virtual-thread sessions (optional): only sent when activated
+			if (("virtualThreads").equals(properties.getProperty("sessionExecution"))){
+				params.put("sessionExecution","virtualThreads");
+			}
+
+			// symmetric session protocol (optional): only sent when activated
+			if (("symmetric").equals(properties.getProperty("sessionProtocol"))){
+				params.put("sessionProtocol","symmetric");
+			}
+
+			// binary wire codec (optional): only sent when activated
+			if (("binary").equals(properties.getProperty("wireCodec"))){
+				params.put("wireCodec","binary");
+			}
+
+			// persistent mode (optional): the folder is only sent when persistence is activated
+			if (("On").equals(properties.getProperty("persistence"))){
+				params.put("persistenceFolder",properties.getProperty("persistenceFolder"));
+				params.put("persistenceSegmentSize",properties.getProperty("persistenceSegmentSize", "64"));
+				params.put("persistenceCommitDelay",properties.getProperty("persistenceCommitDelay", "2"));
+				params.put("persistenceCommitBatch",properties.getProperty("persistenceCommitBatch", "1024"));
+			}
+
 			//params.put("coordinatorLSimParameters", paramsServer);
 			ExperimentData experimentData = new ExperimentData();
 			experimentData.setParams(params);
@@ -46,8 +46,9 @@ public class ServerResult implements Serializable{
 		this.nodeId = nodeId;
 		this.recipes = recipes.clone();
 		this.log = log;
-		this.summary = tsVector;
-		this.ack = tsMatrix;
+		// O(1) copy-on-write snapshots: the result is not modified by later sessions
+		this.summary = tsVector == null ? null : tsVector.clone();
+		this.ack = tsMatrix == null ? null : tsMatrix.clone();
 	}
 	
 	public String getNodeId(){
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import recipes_service.data.Operation;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Operations issued by a single host, stored in seqnumber order.
+ * <p>
+ * Operations are stored in fixed-size chunks. Every operation has an absolute
+ * position (0 for the first operation ever appended) and chunk k, holding the
+ * positions [k*CHUNK_SIZE, (k+1)*CHUNK_SIZE), is kept in a ring of chunks at
+ * index k modulo the ring length. Live operations are the ones in [start, end).
+ * <p>
+ * As sequence numbers issued by a host are consecutive, the position of an
+ * operation is found by offset from the seqnumber of the first live operation
+ * (with a binary search fallback if the log has gaps).
+ * <p>
+ * Purging only advances start and drops the chunks left completely behind it,
+ * so memory is reclaimed a chunk at a time and no operation is ever moved.
+ * <p>
+ * Appends and purges are serialized on this object. Readers do not lock: they
+ * read end before start and the ring, and a chunk found in the ring is checked
+ * against the chunk index it is expected to hold.
+ * <p>
+ * Operations received before the ones that precede them can be held (outside
+ * the ring, and not serialized) until the gap is filled and they are released.
+ */
+class HostLog implements Serializable {
+
+    private static final long serialVersionUID = 2453163286712069473L;
+
+    static final int CHUNK_SIZE = 256;
+
+    private static final int INITIAL_RING_LENGTH = 4;
+
+    private static final class Chunk {
+        private final long index;
+        private final Operation[] operations = new Operation[CHUNK_SIZE];
+
+        private Chunk(long index) {
+            this.index = index;
+        }
+    }
+
+    private transient volatile Chunk[] ring;
+    private transient volatile long start;
+    private transient volatile long end;
+
+    // last operation appended (it is kept even if it has been purged)
+    private transient volatile Operation last;
+    // seqnumber of the last operation purged before the log was restored
+    // (-1: none), when no operation has been appended since
+    private transient volatile long restored;
+
+    // operations held until the operations that precede them are appended, by seqnumber
+    private transient TreeMap<Long, Operation> held;
+
+    HostLog() {
+        init();
+    }
+
+    private void init() {
+        ring = new Chunk[INITIAL_RING_LENGTH];
+        start = 0;
+        end = 0;
+        last = null;
+        restored = -1;
+        held = new TreeMap<>();
+    }
+
+    /**
+     * Appends op if it is newer than the last appended operation.
+     *
+     * @param op - The operation to append
+     * @return - True if appended, false if op is not newer than the last one.
+     */
+    synchronized boolean append(Operation op) {
+        if (op.getTimestamp().getSeqnumber() < next()) {
+            return false;
+        }
+
+        long position = end;
+        int offset = (int) (position % CHUNK_SIZE);
+        Chunk chunk;
+        if (offset == 0) {
+            chunk = newChunk(position / CHUNK_SIZE);
+        } else {
+            Chunk[] r = ring;
+            chunk = r[(int) ((position / CHUNK_SIZE) & (r.length - 1))];
+        }
+
+        chunk.operations[offset] = op;
+        last = op;
+        end = position + 1;
+
+        return true;
+    }
+
+    /**
+     * Adds chunk index to the ring, doubling the ring if it is full.
+     */
+    private Chunk newChunk(long index) {
+        Chunk[] r = ring;
+        long firstChunk = start / CHUNK_SIZE;
+
+        if (index - firstChunk >= r.length) {
+            Chunk[] grown = new Chunk[r.length * 2];
+            for (long k = firstChunk; k < index; k++) {
+                grown[(int) (k & (grown.length - 1))] = r[(int) (k & (r.length - 1))];
+            }
+            r = grown;
+            ring = grown;
+        }
+
+        Chunk chunk = new Chunk(index);
+        r[(int) (index & (r.length - 1))] = chunk;
+        return chunk;
+    }
+
+    /**
+     * @return - The last appended operation, or null if none.
+     */
+    Operation last() {
+        return last;
+    }
+
+    /**
+     * @return - Seqnumber of the next operation to append (seqnumbers issued by a host start at 0)
+     */
+    long next() {
+        Operation l = last;
+        return l == null ? restored + 1 : l.getTimestamp().getSeqnumber() + 1;
+    }
+
+    /**
+     * Restores an empty log whose operations up to seqnumber have been purged:
+     * the next operation to append is the one after it.
+     *
+     * @param seqnumber - Seqnumber of the last purged operation
+     */
+    synchronized void restore(long seqnumber) {
+        if (last == null && seqnumber > restored) {
+            restored = seqnumber;
+        }
+    }
+
+    /**
+     * Holds op, which is newer than the next operation to append, until the
+     * operations that precede it are appended.
+     *
+     * @param op - The operation to hold
+     * @return - True if held, false if an operation with the same seqnumber is already held.
+     */
+    synchronized boolean hold(Operation op) {
+        return held.putIfAbsent(op.getTimestamp().getSeqnumber(), op) == null;
+    }
+
+    /**
+     * Appends the held operations that follow the last appended one, and
+     * discards the held operations that are not newer than it.
+     *
+     * @param released - Receives the appended operations, in seqnumber order
+     * @return - Number of held operations removed (released or discarded)
+     */
+    synchronized int release(List<Operation> released) {
+        if (held.isEmpty()) {
+            return 0;
+        }
+
+        int removed = 0;
+        long next = next();
+        while (!held.isEmpty() && held.firstKey() <= next) {
+            Operation op = held.pollFirstEntry().getValue();
+            removed++;
+            if (op.getTimestamp().getSeqnumber() == next && append(op)) {
+                released.add(op);
+                next++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return - Number of held operations
+     */
+    synchronized int held() {
+        return held.size();
+    }
+
+    /**
+     * Removes the operations whose seqnumber is not greater than upTo.
+     * Only whole chunks are released; the operations purged from the
+     * first remaining chunk are released when the chunk is dropped.
+     *
+     * @param upTo - Seqnumber of the last operation to purge
+     */
+    synchronized void purge(long upTo) {
+        if (upTo < 0) {
+            return;
+        }
+
+        long e = end;
+        long s = start;
+        Chunk[] r = ring;
+        long newStart = positionAfter(r, s, e, upTo);
+        if (newStart <= s) {
+            return;
+        }
+
+        // drop chunks that only contain purged operations
+        for (long k = s / CHUNK_SIZE; k < newStart / CHUNK_SIZE; k++) {
+            r[(int) (k & (r.length - 1))] = null;
+        }
+        start = newStart;
+    }
+
+    /**
+     * Adds to view the live operations newer than last.
+     *
+     * @param last - Seqnumber of the last operation already known. A negative value means all operations.
+     * @param view - The view where the ranges of newer operations are appended
+     */
+    void newerThan(long last, LogView view) {
+        long e = end;
+        long s = start;
+        Chunk[] r = ring;
+
+        long from = last < 0 ? s : positionAfter(r, s, e, last);
+
+        while (from < e) {
+            long index = from / CHUNK_SIZE;
+            int offset = (int) (from % CHUNK_SIZE);
+            int to = (int) Math.min(CHUNK_SIZE, e - index * CHUNK_SIZE);
+
+            Chunk chunk = chunk(r, index);
+            if (chunk != null) {
+                view.addRange(chunk.operations, offset, to);
+            }
+            from = index * CHUNK_SIZE + to;
+        }
+    }
+
+    /**
+     * Adds to view all the live operations.
+     */
+    void all(LogView view) {
+        newerThan(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, view);
+    }
+
+    /**
+     * @return chunk index of ring r, or null if it has been purged
+     */
+    private static Chunk chunk(Chunk[] r, long index) {
+        Chunk chunk = r[(int) (index & (r.length - 1))];
+        return (chunk != null && chunk.index == index) ? chunk : null;
+    }
+
+    /**
+     * @return seqnumber of the operation at position, or NULL_TIMESTAMP_SEQ_NUMBER if it has been purged
+     */
+    private static long seqnumberAt(Chunk[] r, long position) {
+        Chunk chunk = chunk(r, position / CHUNK_SIZE);
+        return chunk == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER
+                : chunk.operations[(int) (position % CHUNK_SIZE)].getTimestamp().getSeqnumber();
+    }
+
+    /**
+     * @return the position of the first operation with a seqnumber greater than last in [s, e)
+     */
+    private static long positionAfter(Chunk[] r, long s, long e, long last) {
+        if (s >= e) {
+            return e;
+        }
+
+        // (a purged operation is seen as NULL_TIMESTAMP_SEQ_NUMBER, i.e. not newer than last)
+        if (seqnumberAt(r, e - 1) <= last) {
+            return e;
+        }
+
+        // consecutive seqnumbers: the position is a direct offset
+        long first = seqnumberAt(r, s);
+        long offset = last - first + 1;
+        if (first >= 0 && offset <= 0) {
+            return s;
+        }
+        if (first >= 0 && offset < e - s
+                && seqnumberAt(r, s + offset) > last && seqnumberAt(r, s + offset - 1) <= last) {
+            return s + offset;
+        }
+
+        // there are gaps in the log (or it has been purged while reading): binary search
+        long low = s;
+        long high = e;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (seqnumberAt(r, mid) <= last) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Serializes only the live operations
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        LogView operations = new LogView();
+        all(operations);
+        out.writeObject(last);
+        out.writeInt(operations.size());
+        for (Operation op : operations) {
+            out.writeObject(op);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+
+        Operation lastAppended = (Operation) in.readObject();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            append((Operation) in.readObject());
+        }
+        last = lastAppended;
+    }
+
+    /**
+     * equals
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HostLog)) {
+            return false;
+        }
+
+        LogView thisOps = new LogView();
+        LogView thatOps = new LogView();
+        all(thisOps);
+        ((HostLog) obj).all(thatOps);
+
+        return thisOps.equals(thatOps);
+    }
+
+    @Override
+    public int hashCode() {
+        LogView ops = new LogView();
+        all(ops);
+        return ops.hashCode();
+    }
+}
@@ -20,16 +20,18 @@
 
 package recipes_service.tsae.data_structures;
 
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
 import recipes_service.data.Operation;
+import recipes_service.tsae.persistence.WriteAheadLog;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 //LSim logging system imports sgeag@2017
 
@@ -47,70 +49,288 @@ public class Log implements Serializable {
     /**
      * This class implements a log, that stores the operations
      * received  by a client.
-     * They are stored in a ConcurrentHashMap (a hash table),
-     * that stores a list of operations for each member of
-     * the group.
+     * They are stored in an array indexed by the slot of each
+     * member of the group in the ParticipantRegistry, that stores
+     * a HostLog with its operations indexed by seqnumber.
      */
-    private final ConcurrentHashMap<String, List<Operation>> log = new ConcurrentHashMap<>();
+    private final ParticipantRegistry participants;
+    private final HostLog[] log;
+
+    // when set, every operation accepted by add is also appended to it
+    private transient WriteAheadLog writeAheadLog = null;
+
+    // reorder buffer: maximum number of operations held (for all the hosts) until
+    // the operations before them are received, and statistics
+    public static final int DEFAULT_REORDER_BUFFER_SIZE = 4096;
+    private transient int reorderBufferSize;
+    private transient AtomicInteger heldOperations;
+    private transient AtomicLong reorderedOperations;
+    private transient AtomicLong releasedOperations;
+    private transient AtomicLong droppedOperations;
 
     public Log(List<String> participants) {
+        this(ParticipantRegistry.of(participants));
+    }
+
+    public Log(ParticipantRegistry participants) {
         // create an empty log
-        for (Iterator<String> it = participants.iterator(); it.hasNext(); ) {
-            log.put(it.next(), new Vector<Operation>());
+        this.participants = participants;
+        this.log = new HostLog[participants.size()];
+        for (int i = 0; i < log.length; i++) {
+            log[i] = new HostLog();
         }
+        initReorderBuffer();
+    }
+
+    private void initReorderBuffer() {
+        reorderBufferSize = DEFAULT_REORDER_BUFFER_SIZE;
+        heldOperations = new AtomicInteger();
+        reorderedOperations = new AtomicLong();
+        releasedOperations = new AtomicLong();
+        droppedOperations = new AtomicLong();
     }
 
     /**
-     * Returns the hostId of an operation
+     * Returns the log of the host that issued an operation
      *
-     * @param op - The operation from which to obtain the hostId
-     * @return - The host id or null if the operation is null.
+     * @param op - The operation from which to obtain the host
+     * @return - The host log or null if the operation is null or its host is unknown.
      */
-    private String getOperationHostId(Operation op) {
+    private HostLog getOperationHostLog(Operation op) {
         if (op == null) {
             return null;
         }
 
-        return op.getTimestamp().getHostid();
+        int slot = participants.slot(op.getTimestamp().getHostid());
+        return slot < 0 ? null : log[slot];
     }
 
     /**
-     * Returns true if the op is newer than the last one, false otherwise
+     * inserts an operation into the log. Operations are
+     * inserted in order. If the last operation for
+     * the user is not the previous operation than the one
+     * being inserted, the operation is held in the reorder
+     * buffer until the operations before it are inserted.
+     * <p>
+     * Held operations are inserted by the add or addAll call
+     * that fills the gap, which only addAll returns: callers that
+     * apply the operations inserted (recipes, summary) use addAll.
      *
-     * @param op - The operation to compare against
-     * @return - True if newer, false if not.
+     * @param op
+     * @return true if op is inserted, false otherwise (an old, held or dropped operation).
      */
-    private boolean isOperationNewer(Operation op) {
-        if (op == null) {
+    public boolean add(Operation op) {
+        HostLog hostLog = getOperationHostLog(op);
+
+        // unknown host
+        if (hostLog == null) {
             return false;
         }
 
-        List<Operation> allOperations = log.get(getOperationHostId(op));
+        // the operation is encoded for the write-ahead log before taking any lock
+        // (an early operation is encoded when it is released)
+        long seqnumber = op.getTimestamp().getSeqnumber();
+        WriteAheadLog wal = writeAheadLog;
+        byte[] record = null;
+        if (wal != null) {
+            long next = hostLog.next();
+            if (seqnumber < next) {
+                return false;
+            }
+            if (seqnumber == next) {
+                record = encode(wal, op);
+            }
+        }
 
-        Operation lastOperation = allOperations.get(allOperations.size() - 1);
+        // appended only if the op passed in is the next one of its host
+        // (the write-ahead log is updated while holding the host log, to keep the order of its operations)
+        synchronized (hostLog) {
+            if (seqnumber > hostLog.next()) {
+                hold(hostLog, op);
+                return false;
+            }
+            if (!hostLog.append(op)) {
+                return false;
+            }
+            persist(wal, record, op);
+            release(hostLog, wal, null);
+        }
 
-        return lastOperation.getTimestamp().compare(op.getTimestamp()) < 0;
+        return true;
     }
 
     /**
-     * inserts an operation into the log. Operations are
-     * inserted in order. If the last operation for
-     * the user is not the previous operation than the one
-     * being inserted, the insertion will fail.
+     * Inserts the operations of a chunk received in a session. Consecutive
+     * operations of the same host (as sent by listNewer) are appended holding
+     * its host log once.
      *
-     * @param op
-     * @return true if op is inserted, false otherwise.
+     * @param ops - The operations, in the order they have to be appended
+     * @return - The operations that have been appended, in the order they have been
+     * appended: the ones that were next to the last operation of their host, each
+     * followed by the held operations it has released
      */
-    public boolean add(Operation op) {
-        List<Operation> allOperations = log.get(getOperationHostId(op));
+    public List<Operation> addAll(List<Operation> ops) {
+        List<Operation> added = new ArrayList<>(ops.size());
+        WriteAheadLog wal = writeAheadLog;
+
+        int from = 0;
+        while (from < ops.size()) {
+            HostLog hostLog = getOperationHostLog(ops.get(from));
+            int to = from + 1;
+            while (to < ops.size() && getOperationHostLog(ops.get(to)) == hostLog) {
+                to++;
+            }
+
+            // unknown host
+            if (hostLog == null) {
+                from = to;
+                continue;
+            }
+
+            // the operations are encoded for the write-ahead log before taking any lock
+            byte[][] records = null;
+            if (wal != null) {
+                records = new byte[to - from][];
+                for (int i = from; i < to; i++) {
+                    records[i - from] = encode(wal, ops.get(i));
+                }
+            }
 
-        // no operation or the op passed in is newer than the last one
-        if (allOperations.isEmpty() || isOperationNewer(op)) {
-            // we add it to the list
-            return allOperations.add(op);
+            synchronized (hostLog) {
+                for (int i = from; i < to; i++) {
+                    Operation op = ops.get(i);
+                    if (op.getTimestamp().getSeqnumber() > hostLog.next()) {
+                        hold(hostLog, op);
+                        continue;
+                    }
+                    if (!hostLog.append(op)) {
+                        continue;
+                    }
+                    added.add(op);
+                    persist(wal, records == null ? null : records[i - from], op);
+                    release(hostLog, wal, added);
+                }
+            }
+            from = to;
         }
 
-        return false;
+        return added;
+    }
+
+    /**
+     * Holds op in the reorder buffer, or drops it if the buffer is full
+     * (it is received again in a later session).
+     * Called holding hostLog.
+     */
+    private void hold(HostLog hostLog, Operation op) {
+        if (heldOperations.incrementAndGet() > reorderBufferSize) {
+            heldOperations.decrementAndGet();
+            droppedOperations.incrementAndGet();
+            LSimLogger.log(Level.DEBUG, "[Log] reorder buffer full: dropping " + op.getTimestamp());
+            return;
+        }
+        if (hostLog.hold(op)) {
+            reorderedOperations.incrementAndGet();
+        } else {
+            heldOperations.decrementAndGet();
+        }
+    }
+
+    /**
+     * Appends (and persists) the held operations that follow the last operation of hostLog.
+     * Called holding hostLog.
+     *
+     * @param added - Receives the released operations, if not null
+     */
+    private void release(HostLog hostLog, WriteAheadLog wal, List<Operation> added) {
+        if (hostLog.held() == 0) {
+            return;
+        }
+
+        List<Operation> released = new ArrayList<>();
+        heldOperations.addAndGet(-hostLog.release(released));
+        releasedOperations.addAndGet(released.size());
+        for (Operation op : released) {
+            persist(wal, null, op);
+            if (added != null) {
+                added.add(op);
+            }
+        }
+    }
+
+    /**
+     * Appends op to the write-ahead log (if any), encoding it if record is null.
+     */
+    private void persist(WriteAheadLog wal, byte[] record, Operation op) {
+        if (wal == null) {
+            return;
+        }
+        if (record == null) {
+            record = encode(wal, op);
+        }
+        if (record == null) {
+            return;
+        }
+
+        try {
+            wal.append(op.getTimestamp(), record);
+        } catch (IOException e) {
+            LSimLogger.log(Level.ERROR, "[Log] unable to persist operation " + op + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] encode(WriteAheadLog wal, Operation op) {
+        try {
+            return wal.encode(op);
+        } catch (IOException e) {
+            LSimLogger.log(Level.ERROR, "[Log] unable to persist operation " + op + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Sets the write-ahead log where accepted operations are persisted.
+     *
+     * @param writeAheadLog - The write-ahead log, or null to stop persisting operations.
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Sets the maximum number of operations held until the operations before
+     * them are received. Operations received beyond it are dropped.
+     *
+     * @param reorderBufferSize - Maximum number of held operations (0: early operations are dropped)
+     */
+    public void setReorderBufferSize(int reorderBufferSize) {
+        this.reorderBufferSize = reorderBufferSize;
+    }
+
+    /**
+     * @return - Number of operations currently held in the reorder buffer
+     */
+    public int getHeldOperations() {
+        return heldOperations.get();
+    }
+
+    /**
+     * @return - Number of early operations dropped because the reorder buffer was full
+     */
+    public long getDroppedOperations() {
+        return droppedOperations.get();
+    }
+
+    /**
+     * @return - Statistics of the reorder buffer: operations held now, held in total, released and dropped
+     */
+    public String reorderStatistics() {
+        return "held " + heldOperations.get() + "/" + reorderBufferSize
+                + ", reordered " + reorderedOperations.get()
+                + ", released " + releasedOperations.get()
+                + ", dropped " + droppedOperations.get();
     }
 
     /**
@@ -118,26 +338,48 @@ public class Log implements Serializable {
      * contained in the log that have not been seen by
      * the proprietary of the summary.
      * Returns them in an ordered list.
+     * <p>
+     * The returned list is a read-only view over the log: for each host
+     * the first newer operation is found by its seqnumber, without
+     * scanning nor copying the operations.
      *
      * @param sum
      * @return list of operations
      */
     public List<Operation> listNewer(TimestampVector sum) {
-        List<Operation> newerOps = new ArrayList<>();
+        LogView newerOps = new LogView();
+        long[] last = sum.getSeqnumbers(participants);
 
-        this.log.forEach((node, op) -> {
-            Timestamp last = sum.getLast(node);
-
-            List<Operation> collect = op.stream()
-                    .filter(operation -> operation.getTimestamp().compare(last) > 0)
-                    .collect(Collectors.toList());
-
-            newerOps.addAll(collect);
-        });
+        for (int i = 0; i < log.length; i++) {
+            log[i].newerThan(last[i], newerOps);
+        }
 
         return newerOps;
     }
 
+    /**
+     * Limits a summary received from another node to the operations that
+     * have been appended to this log: the operations of a host that are held
+     * in the reorder buffer or have been dropped are not covered, so that
+     * they are received again in a later session.
+     *
+     * @param sum - The summary of the other node
+     * @return - For each host of the log, the last operation in sum that has been
+     * appended (hosts that are not in the log are not covered)
+     */
+    public TimestampVector appendedOf(TimestampVector sum) {
+        long[] appended = sum.getSeqnumbers(participants).clone();
+        for (int i = 0; i < log.length; i++) {
+            long last = log[i].next() - 1;
+            if (last < 0) {
+                // nothing appended
+                last = Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+            }
+            appended[i] = Math.min(appended[i], last);
+        }
+        return new TimestampVector(participants, appended, false);
+    }
+
     /**
      * Removes from the log the operations that have
      * been acknowledged by all the members
@@ -147,6 +389,35 @@ public class Log implements Serializable {
      * @param ack: ackSummary.
      */
     public void purgeLog(TimestampMatrix ack) {
+        TimestampVector min = ack.minTimestampVector();
+
+        if (min == null) {
+            return;
+        }
+
+        long[] upTo = min.getSeqnumbers(participants);
+        for (int i = 0; i < log.length; i++) {
+            log[i].purge(upTo[i]);
+        }
+    }
+
+    /**
+     * Restores an empty log whose operations up to the ones in purged have
+     * been purged (and stored in a checkpoint), so that the operations after
+     * them are appended in order.
+     *
+     * @param purged: last purged operation of each host.
+     */
+    public void restore(TimestampVector purged) {
+        long[] upTo = purged.getSeqnumbers(participants);
+        for (int i = 0; i < log.length; i++) {
+            log[i].restore(upTo[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initReorderBuffer();
     }
 
     /**
@@ -161,15 +432,18 @@ public class Log implements Serializable {
 
         Log thatLog = (Log) obj;
 
-        for (Map.Entry<String, List<Operation>> stringListEntry : this.log.entrySet()) {
-            // Get the pair of list for this log and the obj log.
-            List<Operation> thisOperationList = stringListEntry.getValue();
-            List<Operation> thatOperationList = thatLog.log.get(stringListEntry.getKey());
-
-            return thisOperationList.equals(thatOperationList);
+        if (participants.size() != thatLog.participants.size()) {
+            return false;
+        }
+        for (int i = 0; i < log.length; i++) {
+            // Get the pair of host logs for this log and the obj log.
+            int slot = thatLog.participants.slot(participants.id(i));
+            if (slot < 0 || !log[i].equals(thatLog.log[slot])) {
+                return false;
+            }
         }
 
-        return false;
+        return true;
     }
 
     /**
@@ -179,8 +453,10 @@ public class Log implements Serializable {
     public synchronized String toString() {
         StringBuilder name = new StringBuilder();
 
-        for (List<Operation> sublog : log.values()) {
-            for (Operation operation : sublog) {
+        for (HostLog sublog : log) {
+            LogView operations = new LogView();
+            sublog.all(operations);
+            for (Operation operation : operations) {
                 name.append(operation).append("\n");
             }
         }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import recipes_service.data.Operation;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of operations made of ranges of the arrays stored in the log.
+ * The ranges are fixed when they are added, so operations inserted into the log
+ * afterwards are not visible through the view. No operation is copied.
+ */
+class LogView extends AbstractList<Operation> implements RandomAccess {
+
+    private final List<Operation[]> arrays = new ArrayList<>();
+    private final List<Integer> froms = new ArrayList<>();
+    // starts.get(i): position in the view of the first operation of range i
+    private final List<Integer> starts = new ArrayList<>();
+
+    private int size = 0;
+
+    /**
+     * Appends the range ops[from..to) to the view
+     */
+    void addRange(Operation[] ops, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        arrays.add(ops);
+        froms.add(from);
+        starts.add(size);
+        size += to - from;
+    }
+
+    @Override
+    public Operation get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        // binary search of the range that contains index
+        int low = 0;
+        int high = starts.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts.get(mid) <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return arrays.get(low)[froms.get(low) + index - starts.get(low)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Operation> iterator() {
+        return new Iterator<Operation>() {
+            private int range = 0;
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return range < arrays.size();
+            }
+
+            @Override
+            public Operation next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int end = range + 1 < starts.size() ? starts.get(range + 1) : size;
+                int length = end - starts.get(range);
+
+                Operation op = arrays.get(range)[froms.get(range) + position];
+                if (++position == length) {
+                    range++;
+                    position = 0;
+                }
+                return op;
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable assignment of a compact int handle (slot) to each participant id.
+ * Slots are the positions of the ids in the participants list.
+ * <p>
+ * Registries are interned: all the registries created for the same list of
+ * participants in a JVM (including the ones received from other nodes) are
+ * the same instance, so Log, TimestampVector and TimestampMatrix built from
+ * the group of participants share it and can be merged slot by slot.
+ * <p>
+ * Participant ids are interned too: timestamps and recipes keep the registry's
+ * String instance, so a host id is stored once in the heap and, as Java
+ * serialization writes repeated objects as back-references, once per stream.
+ */
+public class ParticipantRegistry implements Serializable {
+
+    private static final long serialVersionUID = -3100468036475815893L;
+
+    private static final ConcurrentHashMap<List<String>, ParticipantRegistry> registries = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> ids = new ConcurrentHashMap<>();
+
+    private final String[] participants;
+    private transient Map<String, Integer> slots;
+
+    /**
+     * @param participants ids of the participants
+     * @return the registry of participants
+     */
+    public static ParticipantRegistry of(List<String> participants) {
+        ParticipantRegistry registry = registries.get(participants);
+        if (registry != null) {
+            return registry;
+        }
+        registry = new ParticipantRegistry(participants.toArray(new String[0]));
+        ParticipantRegistry previous = registries.putIfAbsent(registry.ids(), registry);
+
+        return previous == null ? registry : previous;
+    }
+
+    /**
+     * @param id a host id
+     * @return the interned instance of id, or id if it is not a registered participant
+     */
+    public static String intern(String id) {
+        if (id == null) {
+            return null;
+        }
+        String interned = ids.get(id);
+        return interned == null ? id : interned;
+    }
+
+    private ParticipantRegistry(String[] participants) {
+        for (int i = 0; i < participants.length; i++) {
+            String id = ids.putIfAbsent(participants[i], participants[i]);
+            if (id != null) {
+                participants[i] = id;
+            }
+        }
+        this.participants = participants;
+        buildIndex();
+    }
+
+    private void buildIndex() {
+        slots = new HashMap<>(participants.length * 2);
+        for (int i = 0; i < participants.length; i++) {
+            slots.put(participants[i], i);
+        }
+    }
+
+    /**
+     * @return slot of id, or -1 if id is not a participant
+     */
+    public int slot(String id) {
+        Integer slot = slots.get(id);
+        return slot == null ? -1 : slot;
+    }
+
+    public String id(int slot) {
+        return participants[slot];
+    }
+
+    public int size() {
+        return participants.length;
+    }
+
+    public List<String> ids() {
+        return Collections.unmodifiableList(Arrays.asList(participants));
+    }
+
+    /**
+     * @return the registry with id added as the last participant
+     */
+    ParticipantRegistry with(String id) {
+        String[] extended = Arrays.copyOf(participants, participants.length + 1);
+        extended[participants.length] = id;
+        return of(Arrays.asList(extended));
+    }
+
+    /**
+     * @return true if both assign the same slots to the same ids
+     */
+    boolean sameAs(ParticipantRegistry other) {
+        return this == other || Arrays.equals(participants, other.participants);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buildIndex();
+    }
+
+    /**
+     * A registry received from another node is replaced by the local instance
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return of(Arrays.asList(participants));
+    }
+}
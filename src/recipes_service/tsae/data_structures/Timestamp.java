@@ -19,6 +19,8 @@
 */
 
 package recipes_service.tsae.data_structures;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -43,12 +45,15 @@ public class Timestamp implements Serializable{
 	private long seqnumber;
 	
 	public Timestamp(String nodeid, long seqnumber){
-		this.hostid = nodeid;
+		this.hostid = ParticipantRegistry.intern(nodeid);
 		this.seqnumber = seqnumber;
 	}
 	public String getHostid() {
 		return hostid;
 	}
+	public long getSeqnumber() {
+		return seqnumber;
+	}
 	
 	public boolean isNullTimestamp(){
 		return seqnumber < 0;
@@ -89,6 +94,14 @@ public class Timestamp implements Serializable{
 		return true;
 	}
 	
+	/**
+	 * host ids received from other nodes are replaced by the local interned instance
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		hostid = ParticipantRegistry.intern(hostid);
+	}
+	
 	/**
 	 * toString
 	 */
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import util.WireDecoder;
+import util.WireEncoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of the timestamp structures, used by the binary codec
+ * of the messages. Registries are written once per stream (and then referred
+ * to), host ids are interned and seqnumbers are varints.
+ */
+public final class TimestampCodec {
+
+    private TimestampCodec() {
+    }
+
+    public static void writeTimestamp(WireEncoder out, Timestamp timestamp) {
+        out.writeBoolean(timestamp != null);
+        if (timestamp != null) {
+            out.writeId(timestamp.getHostid());
+            out.writeVarLong(timestamp.getSeqnumber());
+        }
+    }
+
+    public static Timestamp readTimestamp(WireDecoder in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String hostid = in.readId();
+        return new Timestamp(hostid, in.readVarLong());
+    }
+
+    private static void writeRegistry(WireEncoder out, ParticipantRegistry registry) {
+        if (out.writeReference(registry)) {
+            return;
+        }
+        out.writeVarInt(registry.size());
+        for (int i = 0; i < registry.size(); i++) {
+            out.writeId(registry.id(i));
+        }
+    }
+
+    private static ParticipantRegistry readRegistry(WireDecoder in) throws IOException {
+        Object known = in.readReference();
+        if (known != null) {
+            return (ParticipantRegistry) known;
+        }
+        String[] ids = new String[in.readCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readId();
+        }
+        ParticipantRegistry registry = ParticipantRegistry.of(Arrays.asList(ids));
+        in.register(registry);
+        return registry;
+    }
+
+    public static void writeVector(WireEncoder out, TimestampVector vector) {
+        out.writeBoolean(vector != null);
+        if (vector == null) {
+            return;
+        }
+        // (a snapshot, so that the registry and the seqnumbers match)
+        TimestampVector snapshot = vector.clone();
+        ParticipantRegistry registry = snapshot.getRegistry();
+        long[] seqnumbers = snapshot.getSeqnumbers(registry);
+        writeRegistry(out, registry);
+        for (long seqnumber : seqnumbers) {
+            out.writeVarLong(seqnumber);
+        }
+    }
+
+    public static TimestampVector readVector(WireDecoder in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ParticipantRegistry registry = readRegistry(in);
+        long[] seqnumbers = new long[registry.size()];
+        for (int i = 0; i < seqnumbers.length; i++) {
+            seqnumbers[i] = in.readVarLong();
+        }
+        return new TimestampVector(registry, seqnumbers, false);
+    }
+
+    public static void writeMatrix(WireEncoder out, TimestampMatrix matrix) {
+        out.writeBoolean(matrix != null);
+        if (matrix == null) {
+            return;
+        }
+        TimestampMatrix snapshot = matrix.clone();
+        TimestampVector[] rows = snapshot.getRows();
+        writeRegistry(out, snapshot.getRegistry());
+        for (TimestampVector row : rows) {
+            writeVector(out, row);
+        }
+    }
+
+    public static TimestampMatrix readMatrix(WireDecoder in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ParticipantRegistry registry = readRegistry(in);
+        TimestampVector[] rows = new TimestampVector[registry.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = readVector(in);
+        }
+        return TimestampMatrix.of(registry, rows);
+    }
+
+    /**
+     * Positions are written as the difference from the previous one (they are increasing)
+     */
+    public static void writeDelta(WireEncoder out, TimestampDelta delta) {
+        out.writeBoolean(delta != null);
+        if (delta == null) {
+            return;
+        }
+        writeRegistry(out, delta.getRegistry());
+        out.writeVarInt(delta.size());
+        int previous = 0;
+        for (int i = 0; i < delta.size(); i++) {
+            out.writeVarInt(delta.position(i) - previous);
+            out.writeVarLong(delta.seqnumber(i));
+            previous = delta.position(i);
+        }
+    }
+
+    public static TimestampDelta readDelta(WireDecoder in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ParticipantRegistry registry = readRegistry(in);
+        int size = in.readCount();
+        int[] positions = new int[size];
+        long[] seqnumbers = new long[size];
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            positions[i] = previous + in.readVarInt();
+            seqnumbers[i] = in.readVarLong();
+            previous = positions[i];
+        }
+        return new TimestampDelta(registry, positions, seqnumbers);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package recipes_service.tsae.data_structures;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Entries of a TimestampVector or a TimestampMatrix that differ from a base
+ * known by the receiver. Positions are slots of the participants registry for
+ * a vector and row * size + column for a matrix.
+ */
+public class TimestampDelta implements Serializable {
+
+    private static final long serialVersionUID = 7461215360845218843L;
+
+    private final ParticipantRegistry participants;
+    private final int[] positions;
+    private final long[] seqnumbers;
+
+    TimestampDelta(ParticipantRegistry participants, int[] positions, long[] seqnumbers) {
+        this.participants = participants;
+        this.positions = positions;
+        this.seqnumbers = seqnumbers;
+    }
+
+    ParticipantRegistry getRegistry() {
+        return participants;
+    }
+
+    int size() {
+        return positions.length;
+    }
+
+    int position(int i) {
+        return positions[i];
+    }
+
+    long seqnumber(int i) {
+        return seqnumbers[i];
+    }
+
+    /**
+     * Accumulates the entries of a delta
+     */
+    static class Builder {
+        private int[] positions = new int[8];
+        private long[] seqnumbers = new long[8];
+        private int size = 0;
+
+        void add(int position, long seqnumber) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                seqnumbers = Arrays.copyOf(seqnumbers, size * 2);
+            }
+            positions[size] = position;
+            seqnumbers[size] = seqnumber;
+            size++;
+        }
+
+        TimestampDelta build(ParticipantRegistry participants) {
+            return new TimestampDelta(participants, Arrays.copyOf(positions, size), Arrays.copyOf(seqnumbers, size));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder all = new StringBuilder("[");
+        for (int i = 0; i < positions.length; i++) {
+            all.append(i == 0 ? "" : ", ").append(positions[i]).append('=').append(seqnumbers[i]);
+        }
+        return all.append(']').toString();
+    }
+}
@@ -20,8 +20,12 @@
 
 package recipes_service.tsae.data_structures;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -32,18 +36,191 @@ import java.util.concurrent.ConcurrentHashMap;
 public class TimestampMatrix implements Serializable {
 
     private static final long serialVersionUID = 3331148113387926667L;
-    ConcurrentHashMap<String, TimestampVector> timestampMatrix = new ConcurrentHashMap<>();
+    /**
+     * Rows are stored in an array indexed by the slot of each participant
+     * in the ParticipantRegistry, which is shared with the rows.
+     * <p>
+     * The matrix is copy-on-write: its participants, rows and digest are an
+     * immutable Snapshot published through a volatile reference. Writers
+     * (serialized by the monitor of the matrix) copy the array of rows, clone
+     * each row they change (an O(1) copy-on-write clone) and publish a new
+     * snapshot, so the rows of a published snapshot are never modified. So
+     * clone() (that shares the snapshot in O(1)), digest(), getTimestampVector()
+     * and minTimestampVector() only read the current snapshot and never wait
+     * for a writer.
+     * <p>
+     * The minimum of each column is maintained incrementally by the writers in
+     * a tournament tree over the rows: columnMin[c][leaves + r] holds the
+     * seqnumber of participant c in row r (NULL_TIMESTAMP_SEQ_NUMBER if the row
+     * does not know it, so that nothing is taken as known by all the participants
+     * until every row knows it; the leaves past the last row hold Long.MAX_VALUE)
+     * and each inner node i holds the minimum of nodes 2i and 2i+1. Changing a row
+     * updates O(log N) nodes of the columns that changed, and the minimum of
+     * column c is at columnMin[c][1]. The trees are built on first use and are
+     * rebuilt when a participant is added; from then on, each snapshot carries
+     * the minima of the columns.
+     * <p>
+     * The digest of the matrix is the sum of a hash of each row (participant
+     * id, digest of the row), updated when a row changes, so it is read in O(1).
+     */
+    // (the serialized form is the registry and the rows, as before the snapshots)
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("participants", ParticipantRegistry.class),
+            new ObjectStreamField("timestampMatrix", TimestampVector[].class)
+    };
+
+    private transient volatile Snapshot snapshot;
+
+    // (only used by the writers, holding the monitor)
+    private transient long[][] columnMin = null;
+    private transient int leaves;
+    // seqnumbers of the row being added to the column minima
+    private transient long[] rowBuffer;
 
     public TimestampMatrix(List<String> participants) {
-        // create and empty TimestampMatrix
-        for (String participant : participants) {
-            timestampMatrix.put(participant, new TimestampVector(participants));
+        this(ParticipantRegistry.of(participants));
+    }
+
+    public TimestampMatrix(ParticipantRegistry participants) {
+        // create and empty TimestampMatrix (all rows share the same registry)
+        TimestampVector[] rows = new TimestampVector[participants.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new TimestampVector(participants);
         }
+        this.snapshot = Snapshot.of(participants, rows);
     }
 
     public TimestampMatrix(ConcurrentHashMap<String, TimestampVector> timestampMatrix) {
-        // use copy constructor to copy all elements from timestampMatrix into this.timestampMatrix
-        this.timestampMatrix = new ConcurrentHashMap<>(timestampMatrix);
+        ParticipantRegistry participants = ParticipantRegistry.of(Arrays.asList(timestampMatrix.keySet().toArray(new String[0])));
+        TimestampVector[] rows = new TimestampVector[participants.size()];
+        timestampMatrix.forEach((node, tsVector) -> rows[participants.slot(node)] = tsVector);
+        this.snapshot = Snapshot.of(participants, rows);
+    }
+
+    private TimestampMatrix(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return a matrix with rows (indexed by the slots of participants). Neither
+     * the array nor the rows may be modified afterwards.
+     */
+    static TimestampMatrix of(ParticipantRegistry participants, TimestampVector[] rows) {
+        return new TimestampMatrix(Snapshot.of(participants, rows));
+    }
+
+    /**
+     * @return registry of the participants of this matrix
+     */
+    ParticipantRegistry getRegistry() {
+        return snapshot.participants;
+    }
+
+    /**
+     * @return the rows (indexed by the slots of the participants). The array must not be modified.
+     */
+    TimestampVector[] getRows() {
+        return snapshot.rows;
+    }
+
+    /**
+     * @return hash of row r of rows (0 if the row is null)
+     */
+    private static long rowDigest(ParticipantRegistry participants, TimestampVector[] rows, int r) {
+        TimestampVector row = rows[r];
+        return row == null ? 0 : TimestampVector.entryDigest(participants.id(r), row.digest());
+    }
+
+    /**
+     * @return digest of the rows of this matrix (equal matrices have the same digest)
+     */
+    public long digest() {
+        return snapshot.digest;
+    }
+
+    /**
+     * Publishes the new state of the matrix (to be called holding the monitor)
+     *
+     * @param rows not modified afterwards
+     */
+    private void publish(ParticipantRegistry participants, TimestampVector[] rows, long digest) {
+        long[] min = null;
+        if (columnMin != null) {
+            min = new long[columnMin.length];
+            for (int c = 0; c < min.length; c++) {
+                min[c] = columnMin[c][1];
+            }
+        }
+        snapshot = new Snapshot(participants, rows, digest, min);
+    }
+
+    /**
+     * @return seqnumbers of row r indexed by the slots of the matrix participants, copied
+     * to rowBuffer (so that the array of the row is not shared and its next write does not copy it)
+     */
+    private long[] rowSeqnumbers(ParticipantRegistry participants, TimestampVector[] rows, int r) {
+        TimestampVector row = rows[r];
+        if (row == null) {
+            return null;
+        }
+        if (rowBuffer == null || rowBuffer.length != rows.length) {
+            rowBuffer = new long[rows.length];
+        }
+        row.copySeqnumbers(participants, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, rowBuffer);
+        return rowBuffer;
+    }
+
+    private void buildColumnMin(ParticipantRegistry participants, TimestampVector[] rows) {
+        int n = rows.length;
+        leaves = 1;
+        while (leaves < n) {
+            leaves <<= 1;
+        }
+
+        columnMin = new long[n][2 * leaves];
+        for (long[] tree : columnMin) {
+            Arrays.fill(tree, Long.MAX_VALUE);
+        }
+        for (int r = 0; r < n; r++) {
+            long[] row = rowSeqnumbers(participants, rows, r);
+            for (int c = 0; c < n; c++) {
+                columnMin[c][leaves + r] = row == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : row[c];
+            }
+        }
+        for (long[] tree : columnMin) {
+            for (int i = leaves - 1; i >= 1; i--) {
+                tree[i] = Math.min(tree[2 * i], tree[2 * i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Updates the column minima after row r has changed
+     */
+    private void updateColumnMin(ParticipantRegistry participants, TimestampVector[] rows, int r) {
+        if (columnMin == null) {
+            // built on the first query
+            return;
+        }
+
+        long[] row = rowSeqnumbers(participants, rows, r);
+        for (int c = 0; c < columnMin.length; c++) {
+            long[] tree = columnMin[c];
+            int i = leaves + r;
+            long value = row == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : row[c];
+            if (tree[i] == value) {
+                continue;
+            }
+
+            tree[i] = value;
+            for (i >>= 1; i >= 1; i >>= 1) {
+                long min = Math.min(tree[2 * i], tree[2 * i + 1]);
+                if (tree[i] == min) {
+                    break;
+                }
+                tree[i] = min;
+            }
+        }
     }
 
     /**
@@ -51,7 +228,9 @@ public class TimestampMatrix implements Serializable {
      * @return the timestamp vector of node in this timestamp matrix
      */
     TimestampVector getTimestampVector(String node) {
-        return timestampMatrix.get(node);
+        Snapshot current = snapshot;
+        int slot = current.participants.slot(node);
+        return slot < 0 ? null : current.rows[slot];
     }
 
     /**
@@ -60,20 +239,64 @@ public class TimestampMatrix implements Serializable {
      * @param tsMatrix
      */
     public void updateMax(TimestampMatrix tsMatrix) {
-        // For each tsVector in timestampMatrix
-        // Update the max comparing to this.timestampMatrix vector
-        tsMatrix.timestampMatrix
-                .forEach((host, timestampVector) -> timestampVector.updateMax(tsMatrix.getTimestampVector(host)));
+        Snapshot other = tsMatrix.snapshot;
+
+        synchronized (this) {
+            Snapshot current = snapshot;
+            ParticipantRegistry participants = current.participants;
+            TimestampVector[] rows = null;
+            long digest = current.digest;
+
+            // Update the max of each local row with the row of the same host
+            for (int i = 0; i < other.rows.length; i++) {
+                int slot = participants.slot(other.participants.id(i));
+
+                if (slot >= 0 && current.rows[slot] != null && other.rows[i] != null) {
+                    if (rows == null) {
+                        rows = current.rows.clone();
+                    }
+                    // the row of the published snapshot is not modified
+                    TimestampVector row = current.rows[slot].clone();
+                    row.updateMax(other.rows[i]);
+                    rows[slot] = row;
+                    digest += rowDigest(participants, rows, slot) - rowDigest(participants, current.rows, slot);
+                    updateColumnMin(participants, rows, slot);
+                }
+            }
+            if (rows != null) {
+                publish(participants, rows, digest);
+            }
+        }
     }
 
     /**
-     * substitutes current timestamp vector of node for tsVector
+     * substitutes current timestamp vector of node for a snapshot of tsVector
      *
      * @param node
      * @param tsVector
      */
     public synchronized void update(String node, TimestampVector tsVector) {
-        timestampMatrix.put(node, tsVector);
+        // a snapshot, so that the column minima are not invalidated by later changes to tsVector
+        TimestampVector row = tsVector == null ? null : tsVector.clone();
+
+        Snapshot current = snapshot;
+        ParticipantRegistry participants = current.participants;
+        TimestampVector[] rows;
+        int slot = participants.slot(node);
+        if (slot < 0) {
+            // unknown node: it is added as a new participant
+            participants = participants.with(node);
+            slot = current.rows.length;
+            rows = Arrays.copyOf(current.rows, slot + 1);
+            columnMin = null;
+        } else {
+            rows = current.rows.clone();
+        }
+        long digest = current.digest - rowDigest(participants, rows, slot);
+        rows[slot] = row;
+        digest += rowDigest(participants, rows, slot);
+        updateColumnMin(participants, rows, slot);
+        publish(participants, rows, digest);
     }
 
     /**
@@ -81,16 +304,114 @@ public class TimestampMatrix implements Serializable {
      * the timestamp known by all participants
      */
     public TimestampVector minTimestampVector() {
+        Snapshot current = snapshot;
+        if (current.rows.length == 0) {
+            return null;
+        }
+        if (current.min == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current.min == null) {
+                    buildColumnMin(current.participants, current.rows);
+                    publish(current.participants, current.rows, current.digest);
+                    current = snapshot;
+                }
+            }
+        }
 
-        // return generated automatically. Remove it when implementing your solution
-        return null;
+        // (shared: the minima of the snapshot are copied before the vector is modified)
+        return new TimestampVector(current.participants, current.min, true);
+    }
+
+    /**
+     * @param base a previous state of this matrix known by the receiver of the delta
+     * @return the entries that differ from base, or null if base has other participants
+     */
+    public TimestampDelta diff(TimestampMatrix base) {
+        Snapshot current = this.snapshot;
+        Snapshot previous = base.snapshot;
+        if (!current.participants.sameAs(previous.participants)) {
+            return null;
+        }
+
+        int n = current.participants.size();
+        TimestampDelta.Builder delta = new TimestampDelta.Builder();
+        for (int r = 0; r < n; r++) {
+            TimestampVector row = current.rows[r];
+            TimestampVector baseRow = previous.rows[r];
+            if (row == null || baseRow == null) {
+                if (row != baseRow) {
+                    return null;
+                }
+                continue;
+            }
+
+            long[] seqnumbers = row.getSeqnumbers(current.participants);
+            long[] baseSeqnumbers = baseRow.getSeqnumbers(current.participants);
+            // rows not modified since base still share the array
+            if (seqnumbers == baseSeqnumbers) {
+                continue;
+            }
+            for (int c = 0; c < n; c++) {
+                if (seqnumbers[c] != baseSeqnumbers[c]) {
+                    delta.add(r * n + c, seqnumbers[c]);
+                }
+            }
+        }
+        return delta.build(current.participants);
     }
 
     /**
-     * clone
+     * @param delta entries returned by diff, taking this matrix as the base
+     * @return a new matrix with the entries of delta, or null if delta has other participants
      */
-    public synchronized TimestampMatrix clone() {
-        return new TimestampMatrix(this.timestampMatrix);
+    public TimestampMatrix patch(TimestampDelta delta) {
+        Snapshot base = this.snapshot;
+        if (!base.participants.sameAs(delta.getRegistry())) {
+            return null;
+        }
+
+        int n = base.participants.size();
+        long[][] patchedRows = new long[n][];
+        for (int i = 0; i < delta.size(); i++) {
+            int r = delta.position(i) / n;
+            if (patchedRows[r] == null) {
+                TimestampVector row = base.rows[r];
+                patchedRows[r] = row == null ? new TimestampVector(base.participants).getSeqnumbers(base.participants).clone()
+                        : row.getSeqnumbers(base.participants).clone();
+            }
+            patchedRows[r][delta.position(i) % n] = delta.seqnumber(i);
+        }
+
+        // rows without changes are shared with the base
+        TimestampVector[] rows = base.rows.clone();
+        for (int r = 0; r < n; r++) {
+            if (patchedRows[r] != null) {
+                rows[r] = new TimestampVector(base.participants, patchedRows[r], false);
+            }
+        }
+        return of(base.participants, rows);
+    }
+
+    /**
+     * clone: an O(1) snapshot that shares the rows until one of the matrices is modified
+     */
+    public TimestampMatrix clone() {
+        return new TimestampMatrix(snapshot);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Snapshot current = snapshot;
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("participants", current.participants);
+        fields.put("timestampMatrix", current.rows);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        snapshot = Snapshot.of((ParticipantRegistry) fields.get("participants", null),
+                (TimestampVector[]) fields.get("timestampMatrix", null));
     }
 
     /**
@@ -108,16 +429,43 @@ public class TimestampMatrix implements Serializable {
      * toString
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder all = new StringBuilder();
-        if (timestampMatrix == null) {
+        Snapshot current = snapshot;
+        if (current.rows == null) {
             return all.toString();
         }
-        for (Enumeration<String> en = timestampMatrix.keys(); en.hasMoreElements(); ) {
-            String name = en.nextElement();
-            if (timestampMatrix.get(name) != null)
-                all.append(name).append(":   ").append(timestampMatrix.get(name)).append("\n");
+        for (int i = 0; i < current.rows.length; i++) {
+            if (current.rows[i] != null)
+                all.append(current.participants.id(i)).append(":   ").append(current.rows[i]).append("\n");
         }
         return all.toString();
     }
+
+    /**
+     * Immutable state of a matrix: neither the array of rows nor its rows are
+     * modified once published
+     */
+    private static final class Snapshot {
+        private final ParticipantRegistry participants;
+        private final TimestampVector[] rows;
+        private final long digest;
+        // minimum of each column (null if the column minima have not been built)
+        private final long[] min;
+
+        private Snapshot(ParticipantRegistry participants, TimestampVector[] rows, long digest, long[] min) {
+            this.participants = participants;
+            this.rows = rows;
+            this.digest = digest;
+            this.min = min;
+        }
+
+        private static Snapshot of(ParticipantRegistry participants, TimestampVector[] rows) {
+            long digest = 0;
+            for (int r = 0; r < rows.length; r++) {
+                digest += rowDigest(participants, rows, r);
+            }
+            return new Snapshot(participants, rows, digest, null);
+        }
+    }
 }
@@ -24,12 +24,15 @@ package recipes_service.tsae.data_structures;
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * @author Joan-Manuel Marques
@@ -44,22 +47,144 @@ public class TimestampVector implements Serializable {
     private static final long serialVersionUID = -765026247959198886L;
     /**
      * This class stores a summary of the timestamps seen by a node.
-     * For each node, stores the timestamp of the last received operation.
+     * For each node, stores the seqnumber of the last received operation.
+     * <p>
+     * Each participant has an int slot in the ParticipantRegistry and seqnumbers
+     * are stored in a long[] indexed by slot (a null timestamp is stored as
+     * NULL_TIMESTAMP_SEQ_NUMBER). Vectors of the same group of participants share
+     * the registry, so merging them is a loop over two arrays.
+     * <p>
+     * The seqnumbers array is copy-on-write: clone() shares it with the new
+     * vector in O(1) and marks it as shared, and the first write to a shared
+     * array (on any of the vectors) copies it. So a clone is a consistent
+     * snapshot that is never modified by the writers of the original.
+     * <p>
+     * The digest of the vector is the sum of a hash of each entry (participant
+     * id, seqnumber). It is updated on each write, so it is read in O(1), and
+     * it does not depend on the slots, so vectors of different registries with
+     * the same entries have the same digest.
+     * <p>
+     * Writers hold the write lock of a StampedLock. Reads (clone, digest,
+     * getLast) are optimistic: the fields are read without locking and read
+     * again holding the read lock only if a writer has run meanwhile. A reader
+     * that shares the seqnumbers array marks it as shared before validating,
+     * so a writer that starts afterwards copies it.
      */
 
-    private ConcurrentHashMap<String, Timestamp> timestampVector = new ConcurrentHashMap<>();
+    private ParticipantRegistry participants;
+    private long[] seqnumbers;
+    // true if seqnumbers may be referenced by another vector (or a reader) and must be copied before writing
+    private transient volatile boolean shared = false;
+
+    private transient long digest;
+
+    private transient StampedLock lock = new StampedLock();
 
     public TimestampVector(List<String> participants) {
         // create and empty TimestampVector
-        for (String id : participants) {
-            // when sequence number of timestamp < 0 it means that the timestamp is the null timestamp
-            timestampVector.put(id, new Timestamp(id, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER));
-        }
+        this(ParticipantRegistry.of(participants));
+    }
+
+    public TimestampVector(ParticipantRegistry participants) {
+        // when sequence number of timestamp < 0 it means that the timestamp is the null timestamp
+        this.participants = participants;
+        this.seqnumbers = new long[participants.size()];
+        Arrays.fill(this.seqnumbers, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        this.digest = computeDigest();
     }
 
     public TimestampVector(ConcurrentHashMap<String, Timestamp> timestampVector) {
-        // Use copy constructor to copy all elements from timestampVector into this.timestampVector
-        this.timestampVector = new ConcurrentHashMap<>(timestampVector);
+        this(new ArrayList<>(timestampVector.keySet()));
+        for (Timestamp timestamp : timestampVector.values()) {
+            seqnumbers[participants.slot(timestamp.getHostid())] = timestamp.getSeqnumber();
+        }
+        digest = computeDigest();
+    }
+
+    TimestampVector(ParticipantRegistry participants, long[] seqnumbers, boolean shared) {
+        this.participants = participants;
+        this.seqnumbers = seqnumbers;
+        this.shared = shared;
+        this.digest = computeDigest();
+    }
+
+    private TimestampVector(ParticipantRegistry participants, long[] seqnumbers, boolean shared, long digest) {
+        this.participants = participants;
+        this.seqnumbers = seqnumbers;
+        this.shared = shared;
+        this.digest = digest;
+    }
+
+    /**
+     * @return hash of the entry (id, value), used to build the digests of vectors and matrices
+     */
+    static long entryDigest(String id, long value) {
+        long h = id.hashCode() * 0x9E3779B97F4A7C15L + value;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private long computeDigest() {
+        long d = 0;
+        for (int i = 0; i < seqnumbers.length; i++) {
+            d += entryDigest(participants.id(i), seqnumbers[i]);
+        }
+        return d;
+    }
+
+    /**
+     * Sets the seqnumber of slot in seqnumbers (an array already writable) and updates the digest
+     */
+    private void set(long[] seqnumbers, int slot, long value) {
+        String id = participants.id(slot);
+        digest += entryDigest(id, value) - entryDigest(id, seqnumbers[slot]);
+        seqnumbers[slot] = value;
+    }
+
+    /**
+     * @return digest of the entries of this vector (equal vectors have the same digest)
+     */
+    public long digest() {
+        long stamp = lock.tryOptimisticRead();
+        long d = digest;
+        if (lock.validate(stamp)) {
+            return d;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return digest;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return seqnumbers, copied first if it is shared
+     */
+    private long[] writableSeqnumbers() {
+        if (shared) {
+            seqnumbers = seqnumbers.clone();
+            shared = false;
+        }
+        return seqnumbers;
+    }
+
+    /**
+     * @return slot of node, adding it as a new participant if it is unknown
+     */
+    private int slotOf(String node) {
+        int slot = participants.slot(node);
+        if (slot < 0) {
+            participants = participants.with(node);
+            slot = seqnumbers.length;
+            seqnumbers = Arrays.copyOf(seqnumbers, slot + 1);
+            seqnumbers[slot] = Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+            shared = false;
+            digest += entryDigest(node, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+        }
+        return slot;
     }
 
     /**
@@ -70,7 +195,31 @@ public class TimestampVector implements Serializable {
     public void updateTimestamp(Timestamp timestamp) {
         LSimLogger.log(Level.TRACE, "Updating the TimestampVectorInserting with the timestamp: " + timestamp);
 
-        this.timestampVector.put(timestamp.getHostid(), timestamp);
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(timestamp.getHostid());
+            set(writableSeqnumbers(), slot, timestamp.getSeqnumber());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Updates the timestamp vector with a timestamp if it is newer
+     * than the last one of its host.
+     *
+     * @param timestamp the new timestamp
+     */
+    public void updateMax(Timestamp timestamp) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = participants.slot(timestamp.getHostid());
+            if (slot >= 0 && timestamp.getSeqnumber() > seqnumbers[slot]) {
+                set(writableSeqnumbers(), slot, timestamp.getSeqnumber());
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -79,15 +228,38 @@ public class TimestampVector implements Serializable {
      * @param tsVector (a timestamp vector)
      */
     public void updateMax(TimestampVector tsVector) {
-        for (String participant : tsVector.getParticipants()) {
-            Timestamp last = this.getLast(participant);
-            Timestamp tsVectorLast = tsVector.getLast(participant);
+        TimestampVector copy = tsVector.clone();
+        long[] other = copy.seqnumbers;
+
+        long stamp = lock.writeLock();
+        try {
+            if (participants.sameAs(copy.participants)) {
+                int i = 0;
+                // nothing is copied unless some seqnumber is greater
+                while (i < other.length && other[i] <= seqnumbers[i]) {
+                    i++;
+                }
+                if (i == other.length) {
+                    return;
+                }
+                long[] local = writableSeqnumbers();
+                for (; i < local.length; i++) {
+                    if (other[i] > local[i]) {
+                        set(local, i, other[i]);
+                    }
+                }
+                return;
+            }
 
-            // If this last does not exist or, this last is older than tsVectorLast
-            // then update the last timestamp for the current participant
-            if (last == null || last.compare(tsVectorLast) < 0) {
-                timestampVector.put(participant, tsVectorLast);
+            // different participants: merge by id
+            for (int i = 0; i < other.length; i++) {
+                int slot = slotOf(copy.participants.id(i));
+                if (other[i] > seqnumbers[slot]) {
+                    set(writableSeqnumbers(), slot, other[i]);
+                }
             }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -97,7 +269,26 @@ public class TimestampVector implements Serializable {
      * received.
      */
     public Timestamp getLast(String node) {
-        return timestampVector.get(node);
+        long stamp = lock.tryOptimisticRead();
+        ParticipantRegistry p = participants;
+        long[] s = seqnumbers;
+        int slot = p.slot(node);
+        // (a participant added meanwhile may not be in s yet)
+        long seqnumber = slot >= 0 && slot < s.length ? s[slot] : Timestamp.NULL_TIMESTAMP_SEQ_NUMBER;
+        if (lock.validate(stamp)) {
+            return slot < 0 ? null : new Timestamp(p.id(slot), seqnumber);
+        }
+
+        stamp = lock.readLock();
+        try {
+            slot = participants.slot(node);
+            if (slot < 0) {
+                return null;
+            }
+            return new Timestamp(participants.id(slot), seqnumbers[slot]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -108,49 +299,222 @@ public class TimestampVector implements Serializable {
      * @param tsVector (timestamp vector)
      */
     public void mergeMin(TimestampVector tsVector) {
-        for (String participant : tsVector.getParticipants()) {
-            Timestamp last = this.getLast(participant);
-            Timestamp tsVectorLast = tsVector.getLast(participant);
+        TimestampVector copy = tsVector.clone();
+        long[] other = copy.seqnumbers;
+
+        long stamp = lock.writeLock();
+        try {
+            if (participants.sameAs(copy.participants)) {
+                int i = 0;
+                // nothing is copied unless some seqnumber is smaller
+                while (i < other.length && other[i] >= seqnumbers[i]) {
+                    i++;
+                }
+                if (i == other.length) {
+                    return;
+                }
+                long[] local = writableSeqnumbers();
+                for (; i < local.length; i++) {
+                    if (other[i] < local[i]) {
+                        set(local, i, other[i]);
+                    }
+                }
+                return;
+            }
 
-            // If this last does not exist or, this last is newer than tsVectorLast
-            // then update the last timestamp for the current participant
-            if (last == null || last.compare(tsVectorLast) > 0) {
-                timestampVector.put(participant, tsVectorLast);
+            // different participants: merge by id
+            for (int i = 0; i < other.length; i++) {
+                String id = copy.participants.id(i);
+                int slot = participants.slot(id);
+                if (slot < 0) {
+                    slot = slotOf(id);
+                    set(seqnumbers, slot, other[i]);
+                } else if (other[i] < seqnumbers[slot]) {
+                    set(writableSeqnumbers(), slot, other[i]);
+                }
             }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
-    public List<String> getParticipants() {
-        List<String> participants = new ArrayList<>();
-        Enumeration<String> keys = timestampVector.keys();
+    /**
+     * @return registry of the participants of this vector
+     */
+    ParticipantRegistry getRegistry() {
+        long stamp = lock.tryOptimisticRead();
+        ParticipantRegistry p = participants;
+        if (lock.validate(stamp)) {
+            return p;
+        }
 
-        while (keys.hasMoreElements()) {
-            participants.add(keys.nextElement());
+        stamp = lock.readLock();
+        try {
+            return participants;
+        } finally {
+            lock.unlockRead(stamp);
         }
+    }
+
+    /**
+     * @param registry participants of the returned array
+     * @return the seqnumbers indexed by the slots of registry (NULL_TIMESTAMP_SEQ_NUMBER
+     * for the participants unknown by this vector). The array must not be modified.
+     */
+    long[] getSeqnumbers(ParticipantRegistry registry) {
+        return getSeqnumbers(registry, Timestamp.NULL_TIMESTAMP_SEQ_NUMBER);
+    }
+
+    /**
+     * @param registry participants of the returned array
+     * @param unknown  value returned for the participants unknown by this vector
+     * @return the seqnumbers indexed by the slots of registry. The array must not be modified.
+     */
+    long[] getSeqnumbers(ParticipantRegistry registry, long unknown) {
+        long stamp = lock.tryOptimisticRead();
+        long[] s = seqnumbers;
+        if (participants.sameAs(registry)) {
+            shared = true;
+            if (lock.validate(stamp)) {
+                return s;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            if (participants.sameAs(registry)) {
+                shared = true;
+                return seqnumbers;
+            }
+
+            long[] aligned = new long[registry.size()];
+            for (int i = 0; i < aligned.length; i++) {
+                int slot = participants.slot(registry.id(i));
+                aligned[i] = slot < 0 ? unknown : seqnumbers[slot];
+            }
+            return aligned;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the seqnumbers indexed by the slots of registry to dest. Unlike
+     * getSeqnumbers, the array of this vector is not marked as shared, so the
+     * next write to this vector does not copy it.
+     *
+     * @param unknown value copied for the participants unknown by this vector
+     * @param dest    array of registry.size() seqnumbers
+     */
+    void copySeqnumbers(ParticipantRegistry registry, long unknown, long[] dest) {
+        long stamp = lock.tryOptimisticRead();
+        long[] s = seqnumbers;
+        if (participants.sameAs(registry) && s.length == dest.length) {
+            System.arraycopy(s, 0, dest, 0, dest.length);
+            if (lock.validate(stamp)) {
+                return;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            if (participants.sameAs(registry)) {
+                System.arraycopy(seqnumbers, 0, dest, 0, dest.length);
+                return;
+            }
+
+            for (int i = 0; i < dest.length; i++) {
+                int slot = participants.slot(registry.id(i));
+                dest[i] = slot < 0 ? unknown : seqnumbers[slot];
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param base a previous state of this vector known by the receiver of the delta
+     * @return the entries that differ from base, or null if base has other participants
+     */
+    public TimestampDelta diff(TimestampVector base) {
+        TimestampVector current = this.clone();
+        TimestampVector previous = base.clone();
+        if (!current.participants.sameAs(previous.participants)) {
+            return null;
+        }
+
+        TimestampDelta.Builder delta = new TimestampDelta.Builder();
+        if (current.seqnumbers != previous.seqnumbers) {
+            for (int i = 0; i < current.seqnumbers.length; i++) {
+                if (current.seqnumbers[i] != previous.seqnumbers[i]) {
+                    delta.add(i, current.seqnumbers[i]);
+                }
+            }
+        }
+        return delta.build(current.participants);
+    }
 
-        return participants;
+    /**
+     * @param delta entries returned by diff, taking this vector as the base
+     * @return a new vector with the entries of delta, or null if delta has other participants
+     */
+    public TimestampVector patch(TimestampDelta delta) {
+        TimestampVector base = this.clone();
+        if (!base.participants.sameAs(delta.getRegistry())) {
+            return null;
+        }
+
+        long[] patched = base.seqnumbers.clone();
+        for (int i = 0; i < delta.size(); i++) {
+            patched[delta.position(i)] = delta.seqnumber(i);
+        }
+        return new TimestampVector(base.participants, patched, false);
+    }
+
+    public List<String> getParticipants() {
+        return new ArrayList<>(participants.ids());
     }
 
     /**
-     * clone
+     * clone: an O(1) snapshot that shares the seqnumbers until one of the vectors is modified
      */
     public TimestampVector clone() {
-        return new TimestampVector(this.timestampVector);
+        long stamp = lock.tryOptimisticRead();
+        ParticipantRegistry p = participants;
+        long[] s = seqnumbers;
+        long d = digest;
+        shared = true;
+        if (lock.validate(stamp)) {
+            return new TimestampVector(p, s, true, d);
+        }
+
+        stamp = lock.readLock();
+        try {
+            shared = true;
+            return new TimestampVector(participants, seqnumbers, true, digest);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
      * equals
      */
-    public synchronized boolean equals(TimestampVector ts) {
+    public boolean equals(TimestampVector ts) {
         if (ts == null) {
             return false;
         }
 
-        for (Map.Entry<String, Timestamp> stringTimestampEntry : this.timestampVector.entrySet()) {
-            Timestamp thatTimestamp = ts.timestampVector.get(stringTimestampEntry.getKey());
-            Timestamp thisTimestamp = stringTimestampEntry.getValue();
+        TimestampVector local = this.clone();
+        TimestampVector other = ts.clone();
+        if (local.participants.sameAs(other.participants)) {
+            return Arrays.equals(local.seqnumbers, other.seqnumbers);
+        }
 
-            if (!thisTimestamp.equals(thatTimestamp)) {
+        for (int i = 0; i < local.seqnumbers.length; i++) {
+            int slot = other.participants.slot(local.participants.id(i));
+
+            if (slot < 0 || local.seqnumbers[i] != other.seqnumbers[slot]) {
                 return false;
             }
         }
@@ -158,22 +522,38 @@ public class TimestampVector implements Serializable {
         return true;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        lock = new StampedLock();
+        digest = computeDigest();
+    }
+
     /**
      * toString
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder all = new StringBuilder();
-        if (timestampVector == null) {
-            return all.toString();
-        }
-
-        Enumeration<String> en = timestampVector.keys();
+        long stamp = lock.readLock();
+        try {
+            if (seqnumbers == null) {
+                return all.toString();
+            }
 
-        while (en.hasMoreElements()) {
-            String name = en.nextElement();
-            if (timestampVector.get(name) != null)
-                all.append(timestampVector.get(name)).append("\n");
+            for (int i = 0; i < seqnumbers.length; i++) {
+                all.append(new Timestamp(participants.id(i), seqnumbers[i])).append("\n");
+            }
+        } finally {
+            lock.unlockRead(stamp);
         }
         return all.toString();
     }
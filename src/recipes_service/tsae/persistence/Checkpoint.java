@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.persistence;
+
+import recipes_service.data.Recipe;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * State stored by the write-ahead log before it deletes the segments of
+ * purged operations: the purged operations, and the summary and the recipes
+ * built by all the operations it covers (the purged ones and the newer ones
+ * that are still in the remaining segments).
+ */
+public class Checkpoint implements Serializable {
+
+    private static final long serialVersionUID = 6213865305941279142L;
+
+    private final TimestampVector purged;
+    private final TimestampVector summary;
+    private final List<Recipe> recipes;
+
+    /**
+     * @param purged  operations purged from the log (and from the deleted segments)
+     * @param summary operations covered by the checkpoint
+     * @param recipes recipes built by them (taken after the summary)
+     */
+    public Checkpoint(TimestampVector purged, TimestampVector summary, List<Recipe> recipes) {
+        this.purged = purged;
+        this.summary = summary;
+        this.recipes = recipes;
+    }
+
+    public TimestampVector getPurged() {
+        return purged;
+    }
+
+    public TimestampVector getSummary() {
+        return summary;
+    }
+
+    public List<Recipe> getRecipes() {
+        return recipes;
+    }
+}
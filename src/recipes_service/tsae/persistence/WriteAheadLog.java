@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.persistence;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+import recipes_service.data.Operation;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampVector;
+import util.Serializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of operations stored in memory-mapped segment files.
+ * <p>
+ * Each segment is a file named wal-NNNNNNNNNN.seg that contains a sequence of
+ * records: [int length][int crc32][serialized operation]. A length of 0 marks
+ * the end of the written records (a new segment is zero filled). A record with
+ * a wrong crc is a torn write from a crash: it and everything after it
+ * (including the later segments) are discarded on recovery.
+ * <p>
+ * Once all the operations of a closed segment have been purged from the log,
+ * truncate deletes the segment. Before, it stores a checkpoint of the state
+ * that covers the deleted operations (in the file named checkpoint), which
+ * recovery passes on before the operations of the remaining segments.
+ * <p>
+ * Writes go to the mapped pages, so they survive a crash of the process as
+ * soon as append returns. Pages are forced to disk when a segment is full and
+ * when the log is closed or synced.
+ * <p>
+ * Forcing pages costs a disk flush, so syncs are grouped: once group commit is
+ * started, a committer thread forces all the records appended by any thread
+ * when commitBatch records are pending or commitDelay milliseconds after the
+ * first pending one, and sync only waits for the commit that covers the
+ * records appended before it was called.
+ */
+public class WriteAheadLog {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final File folder;
+    private final long segmentSize;
+
+    // current segment
+    private long segmentIndex = -1;
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    // held while the current segment is forced, so that it is not unmapped meanwhile
+    private final Object forceLock = new Object();
+
+    // greatest seqnumber of each host in each segment (by segment index), to know when it can be deleted
+    private final TreeMap<Long, Map<String, Long>> segmentOperations = new TreeMap<>();
+
+    private final CRC32 crc = new CRC32();
+
+    // group commit: number of records appended and number of records forced to the storage device
+    private volatile long appended = 0;
+    private volatile long durable = 0;
+    private final Object commitLock = new Object();
+    private volatile Thread committer = null;
+    private volatile boolean committing = false;
+    private long commitDelay;
+    private int commitBatch;
+
+    /**
+     * Opens (or creates) the log stored in folder.
+     * Call recover before appending new operations.
+     *
+     * @param folder      folder where segments are stored
+     * @param segmentSize size in bytes of each segment file
+     * @throws IOException
+     */
+    public WriteAheadLog(File folder, long segmentSize) throws IOException {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create write-ahead log folder: " + folder);
+        }
+    }
+
+    /**
+     * Reads the checkpoint and all the operations stored in the log, in the
+     * order they were appended, and positions the log to append after the last
+     * valid record.
+     *
+     * @param checkpoint receives the last checkpoint stored by truncate (if any), before any operation
+     * @param consumer   receives each recovered operation
+     * @return number of recovered operations
+     * @throws IOException
+     */
+    public synchronized int recover(Consumer<Object> checkpoint, Consumer<Operation> consumer) throws IOException {
+        File checkpointFile = new File(folder, CHECKPOINT);
+        if (checkpointFile.exists()) {
+            try {
+                checkpoint.accept(Serializer.deserialize(Files.readAllBytes(checkpointFile.toPath())));
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Corrupted write-ahead log checkpoint in " + checkpointFile, e);
+            }
+        }
+
+        int recovered = 0;
+        File[] segments = segmentFiles();
+
+        for (int i = 0; i < segments.length; i++) {
+            RandomAccessFile file = new RandomAccessFile(segments[i], "rw");
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            Map<String, Long> operations = new HashMap<>();
+            segmentOperations.put(indexOf(segments[i]), operations);
+
+            boolean complete = true;
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    buffer.position(start);
+                    complete = length == 0;
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if (checksum != checksum(payload)) {
+                    buffer.position(start);
+                    complete = false;
+                    break;
+                }
+
+                try {
+                    Operation op = (Operation) Serializer.deserialize(payload);
+                    operations.merge(op.getTimestamp().getHostid(), op.getTimestamp().getSeqnumber(), Math::max);
+                    consumer.accept(op);
+                    recovered++;
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupted write-ahead log record in " + segments[i], e);
+                }
+            }
+
+            if (!complete) {
+                LSimLogger.log(Level.WARN, "[WriteAheadLog] discarding torn record in " + segments[i]
+                        + " at position " + buffer.position());
+                // clear the torn tail so that it is not read after new records
+                int position = buffer.position();
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                buffer.position(position);
+
+                // the records of the later segments were appended after the torn one
+                for (int j = i + 1; j < segments.length; j++) {
+                    LSimLogger.log(Level.WARN, "[WriteAheadLog] discarding " + segments[j] + " (after a torn record)");
+                    if (!segments[j].delete()) {
+                        throw new IOException("Unable to delete write-ahead log segment " + segments[j]);
+                    }
+                }
+                segments = Arrays.copyOf(segments, i + 1);
+            }
+
+            if (i == segments.length - 1) {
+                // continue appending into the last segment
+                segmentIndex = indexOf(segments[i]);
+                segmentFile = file;
+                segment = buffer;
+            } else {
+                unmap(buffer);
+                file.close();
+            }
+        }
+
+        return recovered;
+    }
+
+    /**
+     * Starts the committer thread that groups the syncs of all writers.
+     *
+     * @param commitDelay maximum time (milliseconds) a record waits to be forced
+     * @param commitBatch number of pending records that triggers a commit before commitDelay expires
+     */
+    public void startGroupCommit(long commitDelay, int commitBatch) {
+        synchronized (commitLock) {
+            if (committer != null) {
+                return;
+            }
+            this.commitDelay = commitDelay;
+            this.commitBatch = commitBatch;
+            committing = true;
+            committer = new Thread(this::groupCommit, "WriteAheadLogCommitter");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    private void groupCommit() {
+        while (committing) {
+            try {
+                synchronized (commitLock) {
+                    while (committing && appended == durable) {
+                        commitLock.wait();
+                    }
+                    // wait for more records unless the batch is already full
+                    long deadline = System.currentTimeMillis() + commitDelay;
+                    long remaining = commitDelay;
+                    while (committing && appended - durable < commitBatch && remaining > 0) {
+                        commitLock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // commit what is pending and check if committing has been stopped
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Forces the pages of the current segment and marks as durable
+     * the records appended before.
+     */
+    private void commit() {
+        long upTo;
+        MappedByteBuffer current;
+        synchronized (this) {
+            upTo = appended;
+            current = segment;
+        }
+        if (upTo == durable) {
+            return;
+        }
+
+        // previous segments were forced when they were closed (and are no longer mapped)
+        synchronized (forceLock) {
+            if (current != null && current == segment) {
+                current.force();
+            }
+        }
+
+        synchronized (commitLock) {
+            if (upTo > durable) {
+                durable = upTo;
+            }
+            commitLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends op at the end of the log. The record survives a crash of the
+     * process, but it is only guaranteed to be on the storage device after sync.
+     *
+     * @param op the operation
+     * @return number of the appended record, to be used in sync
+     * @throws IOException
+     */
+    public long append(Operation op) throws IOException {
+        return append(op.getTimestamp(), encode(op));
+    }
+
+    /**
+     * Serializes op into a record payload. Encoding can be done before
+     * taking any lock, as it is the most expensive part of an append.
+     *
+     * @param op the operation
+     * @return the payload to pass to append(byte[])
+     * @throws IOException
+     */
+    public byte[] encode(Operation op) throws IOException {
+        return Serializer.serialize(op);
+    }
+
+    /**
+     * Appends a payload returned by encode at the end of the log.
+     *
+     * @param timestamp timestamp of the encoded operation
+     * @param payload   the encoded operation
+     * @return number of the appended record, to be used in sync
+     * @throws IOException
+     */
+    public long append(Timestamp timestamp, byte[] payload) throws IOException {
+        long record = write(timestamp, payload);
+
+        // wake up the committer on the first pending record and when the batch is full
+        long pending = record - durable;
+        if (committer != null && (pending == 1 || pending >= commitBatch)) {
+            synchronized (commitLock) {
+                commitLock.notifyAll();
+            }
+        }
+        return record;
+    }
+
+    private synchronized long write(Timestamp timestamp, byte[] payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+
+        if (segment == null || segment.remaining() < recordSize) {
+            nextSegment(recordSize);
+        }
+
+        segment.putInt(payload.length);
+        segment.putInt(checksum(payload));
+        segment.put(payload);
+        segmentOperations.get(segmentIndex).merge(timestamp.getHostid(), timestamp.getSeqnumber(), Math::max);
+
+        return ++appended;
+    }
+
+    /**
+     * Waits until all the records appended before the call are on the storage device
+     */
+    public void sync() {
+        sync(appended);
+    }
+
+    /**
+     * Waits until record (and all the records appended before it) is on the storage device
+     *
+     * @param record number returned by append
+     */
+    public void sync(long record) {
+        if (committer == null) {
+            commit();
+            return;
+        }
+
+        synchronized (commitLock) {
+            commitLock.notifyAll();
+            while (durable < record && committing) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if (durable < record) {
+            // committer stopped
+            commit();
+        }
+    }
+
+    /**
+     * Deletes the closed segments whose operations have all been purged from
+     * the log. The checkpoint, which has to cover the state built by all the
+     * operations appended so far, is stored before (and only if) a segment is
+     * deleted: it replaces the previous one.
+     *
+     * @param purged     last operation of each host that has been purged from the log
+     * @param checkpoint builds the checkpoint of the state
+     * @return number of deleted segments
+     * @throws IOException
+     */
+    public int truncate(TimestampVector purged, Supplier<? extends Serializable> checkpoint) throws IOException {
+        List<Long> deleted = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Map<String, Long>> operations : segmentOperations.headMap(segmentIndex).entrySet()) {
+                if (covers(purged, operations.getValue())) {
+                    deleted.add(operations.getKey());
+                }
+            }
+        }
+        if (deleted.isEmpty()) {
+            return 0;
+        }
+
+        // (written aside and renamed, so that a crash leaves either the old or the new checkpoint)
+        File next = new File(folder, CHECKPOINT + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(next)) {
+            out.write(Serializer.serialize(checkpoint.get()));
+            out.getFD().sync();
+        }
+        Files.move(next.toPath(), new File(folder, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            for (Iterator<Long> it = deleted.iterator(); it.hasNext(); ) {
+                long index = it.next();
+                File file = segmentFile(index);
+                if (!file.delete()) {
+                    LSimLogger.log(Level.WARN, "[WriteAheadLog] unable to delete " + file);
+                    it.remove();
+                    continue;
+                }
+                segmentOperations.remove(index);
+            }
+        }
+        LSimLogger.log(Level.DEBUG, "[WriteAheadLog] deleted " + deleted.size() + " purged segments");
+        return deleted.size();
+    }
+
+    /**
+     * @return true if the greatest seqnumber of each host of a segment has been purged
+     */
+    private static boolean covers(TimestampVector purged, Map<String, Long> operations) {
+        for (Map.Entry<String, Long> host : operations.entrySet()) {
+            Timestamp last = purged.getLast(host.getKey());
+            if (last == null || last.getSeqnumber() < host.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the committer, syncs and closes the current segment
+     */
+    public void close() throws IOException {
+        Thread stopped;
+        synchronized (commitLock) {
+            committing = false;
+            stopped = committer;
+            commitLock.notifyAll();
+        }
+        if (stopped != null && stopped != Thread.currentThread()) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            closeSegment();
+        }
+        commit();
+    }
+
+    /**
+     * Forces, unmaps and closes the current segment
+     */
+    private void closeSegment() throws IOException {
+        synchronized (forceLock) {
+            if (segment != null) {
+                segment.force();
+                unmap(segment);
+            }
+            segment = null;
+        }
+        if (segmentFile != null) {
+            segmentFile.close();
+        }
+        segmentFile = null;
+    }
+
+    /**
+     * Closes the current segment and maps a new one with room for at least recordSize bytes.
+     */
+    private void nextSegment(int recordSize) throws IOException {
+        closeSegment();
+
+        segmentIndex++;
+        segmentFile = new RandomAccessFile(segmentFile(segmentIndex), "rw");
+        long size = Math.max(segmentSize, recordSize + RECORD_HEADER_SIZE);
+        segmentFile.setLength(size);
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentOperations.put(segmentIndex, new HashMap<>());
+    }
+
+    private File segmentFile(long index) {
+        return new File(folder, String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Releases the mapping of buffer now, instead of when it is garbage collected
+     * (the buffer must not be used afterwards). If the JVM does not allow it, the
+     * mapping is left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e1) {
+                // left to the garbage collector
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    private int checksum(byte[] payload) {
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return segment files in the order they were written
+     */
+    private File[] segmentFiles() {
+        File[] segments = folder.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, (a, b) -> Long.compare(indexOf(a), indexOf(b)));
+        return segments;
+    }
+
+    private static long indexOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.sessions;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+import recipes_service.ServerData;
+import recipes_service.communication.Message;
+import recipes_service.communication.MessageOperation;
+import recipes_service.communication.MessageOperationBatch;
+import recipes_service.communication.MsgType;
+import recipes_service.communication.ReplyChannel;
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.OperationType;
+import recipes_service.data.Recipe;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends and applies the operations exchanged in a TSAE session
+ * (both sides send and receive them in the same way).
+ * <p>
+ * Each chunk of operations received is a checkpoint: once it has been
+ * applied (and made durable in persistent mode) the summary is advanced to
+ * its operations, so a session that is interrupted halfway keeps what has
+ * been received and the next one resumes from there.
+ * <p>
+ * A session sends at most a window of operations (the oldest ones of each
+ * host, so what the partner receives has no gaps); the rest are sent in the
+ * next sessions. Its end is then marked as partial, so the partner does not
+ * take the summary of the sender as received.
+ */
+class OperationTransfer {
+
+    private OperationTransfer() {
+    }
+
+    /**
+     * Sends operations in chunks of (at most) batchSize operations. The channel
+     * is flushed after each chunk, so the partner applies a chunk while the
+     * next one is sent.
+     * A batchSize of 1 (or less) sends a MessageOperation for each operation,
+     * and the channel is flushed once all of them have been written.
+     */
+    static void send(ReplyChannel channel, List<Operation> operations, int batchSize,
+                     int current_session_number, String side) throws IOException {
+        if (batchSize <= 1) {
+            for (Operation operation : operations) {
+                MessageOperation messageOperation = new MessageOperation(operation);
+                messageOperation.setSessionNumber(current_session_number);
+                channel.writeObject(messageOperation);
+                LSimLogger.log(Level.TRACE, "[" + side + "] [session: " + current_session_number + "] " +
+                        "sent operations: " + messageOperation);
+            }
+            channel.flush();
+            return;
+        }
+
+        for (int from = 0; from < operations.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, operations.size());
+            // (copied: the list of operations of the log is a view that cannot be serialized)
+            MessageOperationBatch batch = new MessageOperationBatch(new ArrayList<>(operations.subList(from, to)));
+            batch.setSessionNumber(current_session_number);
+            channel.writeObject(batch);
+            channel.flush();
+            LSimLogger.log(Level.TRACE, "[" + side + "] [session: " + current_session_number + "] " +
+                    "sent operations: " + batch);
+        }
+    }
+
+    /**
+     * @param window maximum number of operations sent in a session (0: no limit)
+     * @return the first window operations (listNewer sends the operations of each host in order)
+     */
+    static List<Operation> window(List<Operation> operations, int window) {
+        if (window <= 0 || operations.size() <= window) {
+            return operations;
+        }
+        return operations.subList(0, window);
+    }
+
+    /**
+     * @return true if msg carries operations
+     */
+    static boolean isOperations(Message msg) {
+        return msg.type() == MsgType.OPERATION || msg.type() == MsgType.OPERATION_BATCH;
+    }
+
+    /**
+     * Adds the operations carried by msg to the log, and the recipes of
+     * the ADD operations appended to it (including the held operations
+     * they release) to the list of recipes. Then the summary is advanced
+     * to the operations added (checkpoint).
+     */
+    static void apply(ServerData serverData, Message msg) {
+        List<Operation> operations = msg.type() == MsgType.OPERATION
+                ? Collections.singletonList(((MessageOperation) msg).getOperation())
+                : ((MessageOperationBatch) msg).getOperations();
+
+        // Add operations to the log
+        List<Operation> added = serverData.getLog().addAll(operations);
+
+        // If it's an ADD operation, get recipe and add it to the list.
+        // (only the operations appended to the log: not the held, dropped or already known ones)
+        List<Recipe> receivedRecipes = new ArrayList<>(added.size());
+        for (Operation op : added) {
+            if (op.getType() == OperationType.ADD) {
+                receivedRecipes.add(((AddOperation) op).getRecipe());
+            }
+        }
+        serverData.getRecipes().addAll(receivedRecipes);
+
+        checkpoint(serverData, added);
+    }
+
+    /**
+     * Advances the summary to the operations added to the log
+     * (the ones of each host follow the summary without gaps)
+     */
+    private static void checkpoint(ServerData serverData, List<Operation> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        // persistent mode: operations must be durable before the summary is advanced
+        serverData.waitDurable();
+
+        TimestampVector summary = serverData.getSummary();
+        for (int i = 0; i < added.size(); i++) {
+            // (operations of the same host are consecutive: only the last one of each run is needed)
+            Timestamp timestamp = added.get(i).getTimestamp();
+            if (i + 1 == added.size() || !timestamp.getHostid().equals(added.get(i + 1).getTimestamp().getHostid())) {
+                summary.updateMax(timestamp);
+            }
+        }
+    }
+}
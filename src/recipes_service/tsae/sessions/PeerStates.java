@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package recipes_service.tsae.sessions;
+
+import recipes_service.communication.BinaryCodec;
+import recipes_service.communication.MessageAErequest;
+import recipes_service.tsae.data_structures.TimestampDelta;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Summaries and acks last exchanged with each peer, used to send only the
+ * entries that changed since a state the peer holds.
+ * <p>
+ * Each summary and ack sent gets a version. Every MessageAErequest carries
+ * the version of the receiver's state held by the sender (knownVersion), so
+ * a node knows which of its states each peer holds and sends the delta from
+ * it. If the peer no longer has the base (it keeps the last KEPT_VERSIONS
+ * states of each peer) it requests the full state.
+ * <p>
+ * Messages also carry the version of the binary codec that their sender is
+ * able to read, so connections to a peer that has announced it are switched
+ * to the binary codec, and whether their sender is able to read compressed
+ * messages, so that the operations sent to it in a session are compressed.
+ */
+public class PeerStates {
+
+    // states kept for each peer, in each direction
+    private static final int KEPT_VERSIONS = 2;
+
+    private static final class State {
+        private final long version;
+        private final TimestampVector summary;
+        private final TimestampMatrix ack;
+
+        private State(long version, TimestampVector summary, TimestampMatrix ack) {
+            this.version = version;
+            this.summary = summary;
+            this.ack = ack;
+        }
+    }
+
+    // versions are unique across restarts of the node
+    private final AtomicLong nextVersion = new AtomicLong(System.currentTimeMillis() << 20);
+
+    private final Map<String, Deque<State>> sent = new HashMap<>();
+    private final Map<String, Deque<State>> received = new HashMap<>();
+    // version of the local state that each peer has declared to hold
+    private final Map<String, Long> known = new HashMap<>();
+
+    // version of the binary codec announced by this node (0: only Java serialization) and by each peer
+    private volatile int codecVersion = 0;
+    private final ConcurrentHashMap<String, Integer> peerCodecVersions = new ConcurrentHashMap<>();
+
+    // compressed messages: announced by this node and by each peer
+    private volatile boolean compression = false;
+    private final ConcurrentHashMap<String, Boolean> peerCompression = new ConcurrentHashMap<>();
+
+    /**
+     * @param binaryCodec true to announce (and use) the binary codec
+     */
+    public void setBinaryCodec(boolean binaryCodec) {
+        codecVersion = binaryCodec ? BinaryCodec.VERSION : 0;
+    }
+
+    /**
+     * @return version of the binary codec to use in a new connection to peer (0: Java serialization)
+     */
+    public int codecVersion(String peer) {
+        return Math.min(codecVersion, peerCodecVersions.getOrDefault(peer, 0));
+    }
+
+    /**
+     * @param compression true to announce (and use) compressed messages
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return true if the messages sent to peer can be compressed
+     */
+    public boolean compression(String peer) {
+        return compression && peerCompression.getOrDefault(peer, false);
+    }
+
+    /**
+     * @param localId id of this node
+     * @param peer    id of the receiver
+     * @param summary local summary (it must not be modified afterwards)
+     * @param ack     local ack (it must not be modified afterwards)
+     * @return a message with the changes from the state held by peer, or with the full state
+     */
+    public synchronized MessageAErequest encode(String localId, String peer, TimestampVector summary, TimestampMatrix ack) {
+        State base = find(sent, peer, known.getOrDefault(peer, MessageAErequest.NO_VERSION));
+        if (base != null) {
+            TimestampDelta summaryDelta = summary.diff(base.summary);
+            TimestampDelta ackDelta = ack.diff(base.ack);
+            if (summaryDelta != null && ackDelta != null) {
+                MessageAErequest msg = new MessageAErequest(base.version, summaryDelta, ackDelta);
+                return record(msg, localId, peer, summary, ack);
+            }
+        }
+        return encodeFull(localId, peer, summary, ack);
+    }
+
+    /**
+     * @return a message with the full state
+     */
+    public synchronized MessageAErequest encodeFull(String localId, String peer, TimestampVector summary, TimestampMatrix ack) {
+        return record(new MessageAErequest(summary, ack), localId, peer, summary, ack);
+    }
+
+    private MessageAErequest record(MessageAErequest msg, String localId, String peer, TimestampVector summary, TimestampMatrix ack) {
+        State state = new State(nextVersion.incrementAndGet(), summary.clone(), ack.clone());
+        keep(sent, peer, state);
+
+        Deque<State> fromPeer = received.get(peer);
+        long knownVersion = fromPeer == null || fromPeer.isEmpty() ? MessageAErequest.NO_VERSION : fromPeer.peekLast().version;
+        msg.setVersion(localId, state.version, knownVersion);
+        msg.setCodecVersion(codecVersion);
+        msg.setCompression(compression);
+        return msg;
+    }
+
+    /**
+     * Rebuilds the summary and ack of a received message from its delta
+     * (they are set in the message) and keeps them as the base for the
+     * next delta from the sender.
+     *
+     * @param msg the received message
+     * @return false if the base of the delta is not known: the full state must be requested
+     * (or if msg is a request of the full state, which carries no summary and ack)
+     */
+    public synchronized boolean decode(MessageAErequest msg) {
+        if (msg.isFullStateRequired()) {
+            return false;
+        }
+        String peer = msg.getSender();
+        if (peer == null) {
+            // sent without versions: always the full state
+            return !msg.isDelta();
+        }
+        peerCodecVersions.put(peer, msg.getCodecVersion());
+        peerCompression.put(peer, msg.acceptsCompression());
+
+        if (msg.isDelta()) {
+            State base = find(received, peer, msg.getBaseVersion());
+            TimestampVector summary = base == null ? null : base.summary.patch(msg.getSummaryDelta());
+            TimestampMatrix ack = base == null ? null : base.ack.patch(msg.getAckDelta());
+            if (summary == null || ack == null) {
+                return false;
+            }
+            msg.setState(summary, ack);
+        }
+
+        keep(received, peer, new State(msg.getVersion(), msg.getSummary().clone(), msg.getAck().clone()));
+        if (msg.getKnownVersion() != MessageAErequest.NO_VERSION) {
+            known.put(peer, msg.getKnownVersion());
+        }
+        return true;
+    }
+
+    private static State find(Map<String, Deque<State>> states, String peer, long version) {
+        Deque<State> peerStates = states.get(peer);
+        if (peerStates == null || version == MessageAErequest.NO_VERSION) {
+            return null;
+        }
+        for (State state : peerStates) {
+            if (state.version == version) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    private static void keep(Map<String, Deque<State>> states, String peer, State state) {
+        Deque<State> peerStates = states.computeIfAbsent(peer, p -> new ArrayDeque<>());
+        peerStates.addLast(state);
+        while (peerStates.size() > KEPT_VERSIONS) {
+            peerStates.removeFirst();
+        }
+    }
+}
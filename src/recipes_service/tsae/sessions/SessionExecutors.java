@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.sessions;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors to run TSAE sessions
+ */
+public class SessionExecutors {
+
+    private SessionExecutors() {
+    }
+
+    /**
+     * Virtual threads are looked up by reflection, as the code is compiled for
+     * older versions of Java. Without them (before Java 21), each task runs on
+     * a daemon platform thread (reused when idle).
+     *
+     * @return an executor that runs each task on a new virtual thread
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LSimLogger.log(Level.WARN, "[SessionExecutors] virtual threads are not available: TSAE sessions will run on platform threads");
+            return Executors.newCachedThreadPool(SessionExecutors::newDaemonThread);
+        }
+    }
+
+    /**
+     * @return an executor that runs the tasks on (at most) threads daemon platform threads
+     */
+    public static ExecutorService newFixedThreadExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, SessionExecutors::newDaemonThread);
+    }
+
+    private static Thread newDaemonThread(Runnable task) {
+        Thread thread = new Thread(task, "TSAESession");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
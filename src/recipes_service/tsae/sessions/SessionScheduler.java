@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.sessions;
+
+import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
+import lsim.library.api.LSimLogger;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the originator sessions of a server in parallel, at most
+ * maxSessions at a time. The sessions that exceed the limit wait
+ * until a running one ends.
+ * <p>
+ * A session with a partner that already has a session queued or running
+ * is skipped (coalesced with that one): the sessions waiting are at most
+ * one per partner, however long a stalled partner delays them, and none
+ * of them runs late against the state of an old timer tick.
+ */
+public class SessionScheduler {
+
+    private final Executor executor;
+    private final Semaphore running;
+    // partners with a session queued or running
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param executor    runs the sessions
+     * @param maxSessions maximum number of sessions run at the same time
+     */
+    public SessionScheduler(Executor executor, int maxSessions) {
+        this.executor = executor;
+        this.running = new Semaphore(Math.max(1, maxSessions));
+    }
+
+    /**
+     * @param partner id of the partner of the session
+     * @param session the session to run
+     * @return a future completed when the session has ended (or will not be run)
+     */
+    public CompletableFuture<Void> submit(String partner, Runnable session) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!pending.add(partner)) {
+            skipped.incrementAndGet();
+            LSimLogger.log(Level.DEBUG, "[SessionScheduler] session with " + partner + " skipped: one is already queued or running");
+            done.complete(null);
+            return done;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    running.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pending.remove(partner);
+                    done.complete(null);
+                    return;
+                }
+                try {
+                    session.run();
+                } catch (RuntimeException e) {
+                    LSimLogger.log(Level.ERROR, "[SessionScheduler] TSAE session failed: " + e);
+                    e.printStackTrace();
+                } finally {
+                    running.release();
+                    pending.remove(partner);
+                    done.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // TSAE sessions have been stopped
+            pending.remove(partner);
+            done.complete(null);
+        }
+        return done;
+    }
+
+    /**
+     * @return number of sessions skipped because the partner had one queued or running
+     */
+    public long getSkippedSessions() {
+        return skipped.get();
+    }
+}
@@ -20,8 +20,6 @@
 
 package recipes_service.tsae.sessions;
 
-import communication.ObjectInputStream_DS;
-import communication.ObjectOutputStream_DS;
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
 import recipes_service.ServerData;
@@ -30,19 +28,23 @@ import recipes_service.communication.Host;
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
-import recipes_service.data.AddOperation;
+import recipes_service.communication.SessionChannel;
+import recipes_service.communication.StreamSessionChannel;
 import recipes_service.data.Operation;
-import recipes_service.data.OperationType;
-import recipes_service.data.Recipe;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -68,19 +70,22 @@ public class TSAESessionOriginatorSide extends TimerTask {
 
     /**
      * This method performs num TSAE sessions
-     * with num random servers
+     * with num random servers.
+     * Sessions run in parallel (at most maxConcurrentSessions at the same time)
      *
      * @param num
+     * @return a future completed when all the sessions have ended
      */
-    public void sessionWithN(int num) {
+    public CompletableFuture<Void> sessionWithN(int num) {
         if (!SimulationData.getInstance().isConnected())
-            return;
+            return CompletableFuture.completedFuture(null);
         List<Host> partnersTSAEsession = serverData.getRandomPartners(num);
-        Host n;
+        CompletableFuture<?>[] sessions = new CompletableFuture<?>[partnersTSAEsession.size()];
         for (int i = 0; i < partnersTSAEsession.size(); i++) {
-            n = partnersTSAEsession.get(i);
-            sessionTSAE(n);
+            Host n = partnersTSAEsession.get(i);
+            sessions[i] = serverData.getSessionScheduler().submit(n.getId(), () -> sessionTSAE(n));
         }
+        return CompletableFuture.allOf(sessions);
     }
 
     /**
@@ -95,88 +100,308 @@ public class TSAESessionOriginatorSide extends TimerTask {
 
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] TSAE session");
 
+        SessionChannel channel = null;
         try {
-            Socket socket = new Socket(n.getAddress(), n.getPort());
-            ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
-            ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
+            // a session on the pooled connection to n, or a connection of its own
+            if (serverData.pooledConnections()) {
+                channel = serverData.getConnectionPool().openSession(n, current_session_number,
+                        serverData.getPeerStates().codecVersion(n.getId()), (int) serverData.getSessionTimeout());
+            } else {
+                // (a partner that does not accept the connection is given up at the session timeout)
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(n.getAddress(), n.getPort()), (int) serverData.getSessionTimeout());
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                // (the streams wait for the header written by the partner)
+                socket.setSoTimeout((int) serverData.getSessionTimeout());
+                StreamSessionChannel stream = new StreamSessionChannel(socket, serverData.getConnectionSettings());
+                channel = stream;
+                // the partner has announced the binary codec: use it
+                int codecVersion = serverData.getPeerStates().codecVersion(n.getId());
+                if (codecVersion > 0) {
+                    stream.useBinaryCodec(codecVersion);
+                }
+            }
+            // the session is aborted if the partner has not ended it before the deadline
+            channel.setDeadline(System.currentTimeMillis() + serverData.getSessionTimeout());
             TimestampVector localSummary = serverData.getSummary().clone();
-            TimestampMatrix localAck = serverData.getAck().clone();
+            TimestampMatrix localAck;
+            serverData.getAckLock().lock();
+            try {
+                serverData.getAck().update(serverData.getId(), localSummary.clone());
+                localAck = serverData.getAck().clone();
+            } finally {
+                serverData.getAckLock().unlock();
+            }
 
-            // Send to partner: local's summary and ack
-            Message msg = new MessageAErequest(localSummary, localAck);
-            msg.setSessionNumber(current_session_number);
-            out.writeObject(msg);
+            // Send to partner: local's summary and ack (only the changes from the state held by the partner)
+            MessageAErequest request = serverData.getPeerStates().encode(serverData.getId(), n.getId(), localSummary, localAck);
+            if (serverData.symmetricSessions()) {
+                request.setProtocolVersion(MessageAErequest.PROTOCOL_SYMMETRIC);
+            }
+            // (the partner ends the session if they match its summary and ack)
+            request.setDigests(localSummary.digest(), localAck.digest());
+            request.setSessionNumber(current_session_number);
+            channel.writeObject(request);
+            channel.flush();
             LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] send " +
-                    "to partner local's summary and ack: " + msg);
+                    "to partner local's summary and ack: " + request);
 
             // receive operations from partner
-            msg = (Message) in.readObject();
+            Message msg = readMessage(channel, n, localSummary, localAck, current_session_number);
             LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] " +
                     "received operations from partner: " + msg);
-            while (msg.type() == MsgType.OPERATION) {
-                Operation op = ((MessageOperation) msg).getOperation();
 
-                // Add operation to the log
-                serverData.getLog().add(op);
+            // the end of the session instead of partner's state: both nodes are in sync
+            if (msg.type() == MsgType.END_TSAE) {
+                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] " +
+                        "in sync with partner");
+            }
 
-                // If it's an ADD operation, get recipe and add it to the list.
-                if (op.getType() == OperationType.ADD) {
-                    Recipe receivedRecipe = ((AddOperation) op).getRecipe();
-                    serverData.getRecipes().add(receivedRecipe);
-                }
+            // the partner accepted the symmetric protocol: its summary and ack come first
+            if (msg.type() == MsgType.AE_REQUEST && ((MessageAErequest) msg).isSymmetric()) {
+                symmetricSession(msg, channel, n, localSummary, localAck, current_session_number);
+                return;
+            }
+
+            while (OperationTransfer.isOperations(msg)) {
+                // Add operations to the log and their recipes to the list
+                OperationTransfer.apply(serverData, msg);
 
-                msg = (Message) in.readObject();
+                msg = readMessage(channel, n, localSummary, localAck, current_session_number);
                 LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] " +
                         "get next message: " + msg);
             }
 
             // receive partner's summary and ack
             if (msg.type() == MsgType.AE_REQUEST) {
-                MessageAErequest AERequest = (MessageAErequest) msg;
+                MessageAErequest AERequest = receiveState((MessageAErequest) msg, channel, current_session_number);
+                if (AERequest == null) {
+                    return;
+                }
 
                 TimestampVector partnerSummary = AERequest.getSummary();
                 TimestampMatrix partnerAck = AERequest.getAck();
 
-                // send operations
-                for (Operation operation : serverData.getLog().listNewer(partnerSummary)) {
-                    MessageOperation messageOperation = new MessageOperation(operation);
-                    messageOperation.setSessionNumber(current_session_number);
-                    out.writeObject(messageOperation);
-                    LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number +
-                            "] sent operations: " + messageOperation);
-                }
+                // send operations (compressed if the partner is able to read them)
+                // that fit in the window of the session
+                channel.setCompression(serverData.getPeerStates().compression(n.getId()));
+                List<Operation> operations = serverData.getLog().listNewer(partnerSummary);
+                List<Operation> window = OperationTransfer.window(operations, serverData.getCatchUpWindow());
+                OperationTransfer.send(channel, window,
+                        serverData.getOperationBatchSize(), current_session_number, "TSAESessionOriginatorSide");
 
                 // send and "end of TSAE session" message
-                out.writeObject(endTSAEMessage(current_session_number));
+                channel.writeObject(endTSAEMessage(current_session_number, window.size() < operations.size()));
+                channel.flush();
                 LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
 
                 // receive message to inform about the ending of the TSAE session
-                msg = (Message) in.readObject();
+                msg = (Message) channel.readObject();
                 LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] received message: " + msg);
                 if (msg.type() == MsgType.END_TSAE) {
-                    // update max timestamp of current summary and ack
-                    synchronized (serverData) {
-                        serverData.getSummary().updateMax(partnerSummary);
-                        serverData.getAck().updateMax(partnerAck);
-                    }
+                    updateState(partnerSummary, partnerAck, !((MessageEndTSAE) msg).isPartial());
                 }
 
             }
-            socket.close();
         } catch (ClassNotFoundException e) {
             // TODO Auto-generated catch block
             LSimLogger.log(Level.FATAL, "[TSAESessionOriginatorSide] [session: " + current_session_number + "]" + e.getMessage());
             e.printStackTrace();
             System.exit(1);
+        } catch (SocketTimeoutException e) {
+            LSimLogger.log(Level.WARN, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] aborted: " +
+                    "deadline expired waiting for " + n.getId());
         } catch (IOException e) {
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] End TSAE session");
+    }
+
+    /**
+     * Symmetric protocol: once partner's summary and ack are received, local operations
+     * and the end of the session are sent by another task while partner's operations
+     * are received, until partner's end of the session.
+     *
+     * @param msg first message received from the partner (its summary and ack)
+     */
+    private void symmetricSession(Message msg, SessionChannel channel, Host n,
+                                  TimestampVector localSummary, TimestampMatrix localAck, int current_session_number)
+            throws IOException, ClassNotFoundException {
+        MessageAErequest AERequest = null;
+        boolean fullStateRequested = false;
+        boolean partnerEnded = false;
+        boolean partnerPartial = false;
+        CompletableFuture<Void> sent = null;
+
+        while (true) {
+            if (OperationTransfer.isOperations(msg)) {
+                // Add operations to the log and their recipes to the list
+                OperationTransfer.apply(serverData, msg);
+            } else if (msg.type() == MsgType.END_TSAE) {
+                partnerEnded = true;
+                partnerPartial = ((MessageEndTSAE) msg).isPartial();
+            } else if (msg.type() == MsgType.AE_REQUEST && AERequest == null
+                    && serverData.getPeerStates().decode((MessageAErequest) msg)) {
+                AERequest = (MessageAErequest) msg;
+                channel.setCompression(serverData.getPeerStates().compression(n.getId()));
+                sent = sendOperations(channel, AERequest.getSummary(), current_session_number);
+            } else if (msg.type() == MsgType.AE_REQUEST && AERequest == null && !fullStateRequested) {
+                // the delta could not be rebuilt: request partner's summary and ack in full
+                // (partner's operations may arrive before them)
+                MessageAErequest request = MessageAErequest.fullStateRequest(serverData.getId());
+                request.setSessionNumber(current_session_number);
+                channel.writeObject(request);
+                channel.flush();
+                LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + request);
+                fullStateRequested = true;
+            } else {
+                LSimLogger.log(Level.ERROR, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] unable to rebuild partner's state: " + msg);
+                return;
+            }
+
+            if (AERequest != null && partnerEnded) {
+                break;
+            }
+            msg = readMessage(channel, n, localSummary, localAck, current_session_number);
+            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] " +
+                    "get next message: " + msg);
         }
 
+        // wait until local operations have been sent
+        try {
+            sent.get(serverData.getSessionTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("operations not sent before the deadline");
+        }
 
+        updateState(AERequest.getSummary(), AERequest.getAck(), !partnerPartial);
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] End TSAE session");
     }
 
-    private MessageEndTSAE endTSAEMessage(int current_session_number) {
+    /**
+     * Sends the operations newer than partnerSummary (the ones that fit in the window
+     * of the session) and the end of the session.
+     * If there are operations, they are sent by a task of the session executor.
+     *
+     * @return a future completed when they have been sent
+     */
+    private CompletableFuture<Void> sendOperations(SessionChannel channel, TimestampVector partnerSummary, int current_session_number) {
+        List<Operation> newer = serverData.getLog().listNewer(partnerSummary);
+        List<Operation> operations = OperationTransfer.window(newer, serverData.getCatchUpWindow());
+        boolean partial = operations.size() < newer.size();
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        Runnable send = () -> {
+            try {
+                OperationTransfer.send(channel, operations, serverData.getOperationBatchSize(),
+                        current_session_number, "TSAESessionOriginatorSide");
+                channel.writeObject(endTSAEMessage(current_session_number, partial));
+                channel.flush();
+                sent.complete(null);
+            } catch (IOException e) {
+                sent.completeExceptionally(e);
+            }
+        };
+
+        if (operations.isEmpty()) {
+            send.run();
+        } else {
+            serverData.getSessionExecutor().execute(send);
+        }
+        return sent;
+    }
+
+    /**
+     * Updates local's summary and ack with partner's ones once all partner's operations have been received
+     *
+     * @param complete false if the partner has not sent all the operations (the summary
+     *                 has been advanced with the ones received)
+     */
+    private void updateState(TimestampVector partnerSummary, TimestampMatrix partnerAck, boolean complete) {
+        // persistent mode: received operations must be durable before the summary is updated
+        serverData.waitDurable();
+
+        // update max timestamp of current summary and ack
+        // (only up to the operations appended: held or dropped ones are received again in a later session)
+        if (complete) {
+            serverData.getSummary().updateMax(serverData.getLog().appendedOf(partnerSummary));
+        }
+        serverData.getAckLock().lock();
+        try {
+            serverData.getAck().updateMax(partnerAck);
+
+            // remove from the log the operations acknowledged by all participants
+            if (SimulationData.getInstance().purge()) {
+                serverData.purgeLog();
+            }
+        } finally {
+            serverData.getAckLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the next message from the partner. If the partner could not rebuild
+     * the summary and ack sent from the base of the delta, they are sent again in full.
+     */
+    private Message readMessage(SessionChannel channel, Host n,
+                                TimestampVector localSummary, TimestampMatrix localAck, int current_session_number)
+            throws IOException, ClassNotFoundException {
+        Message msg = (Message) channel.readObject();
+        while (msg.type() == MsgType.AE_REQUEST && ((MessageAErequest) msg).isFullStateRequired()) {
+            Message full = serverData.getPeerStates().encodeFull(serverData.getId(), n.getId(), localSummary, localAck);
+            full.setSessionNumber(current_session_number);
+            channel.writeObject(full);
+            channel.flush();
+            LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent full state: " + full);
+            msg = (Message) channel.readObject();
+        }
+        return msg;
+    }
+
+    /**
+     * Rebuilds the summary and ack received from the partner, requesting them in full
+     * if the base of the delta is not known.
+     *
+     * @return the message with the summary and ack, or null if they could not be rebuilt
+     */
+    private MessageAErequest receiveState(MessageAErequest msg, SessionChannel channel, int current_session_number) throws IOException, ClassNotFoundException {
+        if (serverData.getPeerStates().decode(msg)) {
+            return msg;
+        }
+
+        MessageAErequest request = MessageAErequest.fullStateRequest(serverData.getId());
+        request.setSessionNumber(current_session_number);
+        channel.writeObject(request);
+        channel.flush();
+        LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + request);
+
+        Message full = (Message) channel.readObject();
+        if (full.type() == MsgType.AE_REQUEST && serverData.getPeerStates().decode((MessageAErequest) full)) {
+            return (MessageAErequest) full;
+        }
+        LSimLogger.log(Level.ERROR, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] unable to rebuild partner's state: " + full);
+        return null;
+    }
+
+    /**
+     * @param partial true if not all the operations the partner misses have been sent
+     */
+    private MessageEndTSAE endTSAEMessage(int current_session_number, boolean partial) {
         MessageEndTSAE msg = new MessageEndTSAE();
+        msg.setPartial(partial);
         msg.setSessionNumber(current_session_number);
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
         return msg;
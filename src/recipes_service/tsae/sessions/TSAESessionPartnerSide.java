@@ -21,130 +21,296 @@
 package recipes_service.tsae.sessions;
 
 
-import communication.ObjectInputStream_DS;
-import communication.ObjectOutputStream_DS;
 import edu.uoc.dpcs.lsim.logger.LoggerManager.Level;
 import lsim.library.api.LSimLogger;
 import recipes_service.ServerData;
+import recipes_service.activity_simulation.SimulationData;
 import recipes_service.communication.Message;
 import recipes_service.communication.MessageAErequest;
 import recipes_service.communication.MessageEndTSAE;
-import recipes_service.communication.MessageOperation;
 import recipes_service.communication.MsgType;
-import recipes_service.data.AddOperation;
+import recipes_service.communication.ReplyChannel;
+import recipes_service.communication.SessionChannel;
+import recipes_service.communication.SessionHandler;
 import recipes_service.data.Operation;
-import recipes_service.data.OperationType;
-import recipes_service.data.Recipe;
 import recipes_service.tsae.data_structures.TimestampMatrix;
 import recipes_service.tsae.data_structures.TimestampVector;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.util.List;
 
 /**
+ * Partner side of a TSAE session.
+ * <p>
+ * The session is a state machine driven by the messages received from the
+ * originator (receive), so it can either be run by a thread that reads them
+ * from the channel (run) or be fed by a selector as messages arrive. Either
+ * way the session ends if it lasts longer than sessionTimeout.
+ * <p>
+ * If the originator requests the symmetric protocol, local's summary and ack
+ * are sent before the operations, followed by the end of the session, so the
+ * originator sends its operations while it receives the local ones.
+ *
  * @author Joan-Manuel Marques
  * December 2012
  */
-public class TSAESessionPartnerSide extends Thread {
+public class TSAESessionPartnerSide implements Runnable, SessionHandler {
+
+    private enum State {
+        // waiting for originator's summary and ack
+        REQUEST,
+        // waiting for originator's summary and ack in full (the delta could not be rebuilt)
+        FULL_STATE,
+        // waiting for originator's operations and the end of the session
+        OPERATIONS,
+        ENDED
+    }
 
-    private final Socket socket;
+    private final ReplyChannel channel;
+    // channel the messages are read from (null if the session is fed with its messages)
+    private final SessionChannel input;
+    // first message of the session, if it has already been read from the channel
+    private final Message first;
     private final ServerData serverData;
 
-    public TSAESessionPartnerSide(Socket socket, ServerData serverData) {
-        super("TSAEPartnerSideThread");
-        this.socket = socket;
+    private State state = State.REQUEST;
+    private int current_session_number = -1;
+    private MessageAErequest AERequest;
+    private boolean symmetric = false;
+    // not all the operations the originator misses fit in the window of the session
+    private boolean partial = false;
+    private TimestampVector localSummary;
+    private TimestampMatrix localAck;
+
+    /**
+     * A session fed with its messages (receive)
+     *
+     * @param channel channel the session replies through
+     */
+    public TSAESessionPartnerSide(ReplyChannel channel, ServerData serverData) {
+        this.channel = channel;
+        this.input = null;
+        this.first = null;
+        this.serverData = serverData;
+    }
+
+    /**
+     * A session that reads its messages from its channel (run)
+     *
+     * @param channel channel of the session
+     * @param first   first message of the session if it has already been read from channel, or null
+     */
+    public TSAESessionPartnerSide(SessionChannel channel, Message first, ServerData serverData) {
+        this.channel = channel;
+        this.input = channel;
+        this.first = first;
         this.serverData = serverData;
     }
 
+    /**
+     * Reads the messages of the session from its channel and processes them
+     * (only for a session created with a SessionChannel)
+     */
     public void run() {
+        try {
+            input.setDeadline(System.currentTimeMillis() + serverData.getSessionTimeout());
+            Message msg = first != null ? first : (Message) input.readObject();
+            while (receive(msg)) {
+                msg = (Message) input.readObject();
+            }
+        } catch (ClassNotFoundException e) {
+            // TODO Auto-generated catch block
+            LSimLogger.log(Level.FATAL, "[TSAESessionPartnerSide] [session: " + current_session_number + "]" + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } catch (IOException e) {
+        } finally {
+            channel.close();
+        }
+    }
 
-        Message msg;
+    /**
+     * Processes the next message received from the originator
+     *
+     * @return true if the session waits for more messages
+     */
+    public boolean receive(Message msg) throws IOException {
+        LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] received message: " + msg);
+        switch (state) {
+            case REQUEST:
+                current_session_number = msg.getSessionNumber();
+                LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] TSAE session");
+                if (msg.type() != MsgType.AE_REQUEST || ((MessageAErequest) msg).isFullStateRequired()) {
+                    return end();
+                }
+                symmetric = ((MessageAErequest) msg).isSymmetric();
+                boolean decoded = serverData.getPeerStates().decode((MessageAErequest) msg);
+
+                // same summary and ack: nothing to exchange
+                if (inSync((MessageAErequest) msg)) {
+                    LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] in sync with originator");
+                    channel.writeObject(endTSAEMessage(current_session_number));
+                    channel.flush();
+                    return end();
+                }
 
-        int current_session_number = -1;
-        try {
-            ObjectOutputStream_DS out = new ObjectOutputStream_DS(socket.getOutputStream());
-            ObjectInputStream_DS in = new ObjectInputStream_DS(socket.getInputStream());
-
-            // receive request from originator and update local state
-            // receive originator's summary and ack
-            msg = (Message) in.readObject();
-            current_session_number = msg.getSessionNumber();
-            LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] TSAE session");
-            LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] received message: " + msg);
-            if (msg.type() == MsgType.AE_REQUEST) {
                 // Compare local log and partner's summary to find missing operations
-                MessageAErequest AERequest = (MessageAErequest) msg;
-
-                TimestampVector originatorSummary = AERequest.getSummary();
-                TimestampMatrix originatorAck = AERequest.getAck();
-
-                // send operations
-                for (Operation operation : serverData.getLog().listNewer(originatorSummary)) {
-                    MessageOperation messageOperation = new MessageOperation(operation);
-                    messageOperation.setSessionNumber(current_session_number);
-                    out.writeObject(messageOperation);
-                    LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] " +
-                            "sent operations: " + messageOperation);
+                if (decoded) {
+                    return request((MessageAErequest) msg);
                 }
 
-                // send to originator: local's summary and ack
-                synchronized (serverData) {
-                    TimestampVector localSummary = serverData.getSummary().clone();
-                    TimestampMatrix localAck = serverData.getAck().clone();
+                // the delta could not be rebuilt: request originator's summary and ack in full
+                MessageAErequest request = MessageAErequest.fullStateRequest(serverData.getId());
+                request.setSessionNumber(current_session_number);
+                channel.writeObject(request);
+                channel.flush();
+                LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] sent message: " + request);
+                state = State.FULL_STATE;
+                return true;
 
-                    serverData.getAck().update(serverData.getId(), localSummary);
+            case FULL_STATE:
+                if (msg.type() == MsgType.AE_REQUEST && serverData.getPeerStates().decode((MessageAErequest) msg)) {
+                    return request((MessageAErequest) msg);
+                }
+                LSimLogger.log(Level.ERROR, "[TSAESessionPartnerSide] [session: " + current_session_number + "] unable to rebuild originator's state: " + msg);
+                return end();
 
-                    msg = new MessageAErequest(localSummary, localAck);
-                    msg.setSessionNumber(current_session_number);
-                    out.writeObject(msg);
-                    LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] sent message: " + msg);
+            case OPERATIONS:
+                // the originator could not rebuild the summary and ack sent from the base of the delta: send them in full
+                if (msg.type() == MsgType.AE_REQUEST && ((MessageAErequest) msg).isFullStateRequired()) {
+                    Message full = serverData.getPeerStates().encodeFull(serverData.getId(), AERequest.getSender(), localSummary, localAck);
+                    full.setSessionNumber(current_session_number);
+                    channel.writeObject(full);
+                    channel.flush();
+                    LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] sent full state: " + full);
+                    return true;
                 }
 
                 // receive operations
-                msg = (Message) in.readObject();
-                LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] received message: " + msg);
-                while (msg.type() == MsgType.OPERATION) {
-                    Operation op = ((MessageOperation) msg).getOperation();
-
-                    // Add operation to the log
-                    serverData.getLog().add(op);
-
-                    // If it's an ADD operation, get recipe and add it to the list.
-                    if (op.getType() == OperationType.ADD) {
-                        Recipe receivedRecipe = ((AddOperation) op).getRecipe();
-                        serverData.getRecipes().add(receivedRecipe);
-                    }
-
-                    msg = (Message) in.readObject();
-                    LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] received message: " + msg);
+                if (OperationTransfer.isOperations(msg)) {
+                    // Add operations to the log and their recipes to the list
+                    OperationTransfer.apply(serverData, msg);
+                    return true;
                 }
 
                 // receive message to inform about the ending of the TSAE session
                 if (msg.type() == MsgType.END_TSAE) {
-                    synchronized (serverData) {
-                        serverData.getSummary().updateMax(originatorSummary);
-                        serverData.getAck().updateMax(originatorAck);
+                    // persistent mode: received operations must be durable before the summary is updated
+                    serverData.waitDurable();
+
+                    // (a partial transfer: the summary has been advanced with the operations received)
+                    // (only up to the operations appended: held or dropped ones are received again in a later session)
+                    if (!((MessageEndTSAE) msg).isPartial()) {
+                        serverData.getSummary().updateMax(serverData.getLog().appendedOf(AERequest.getSummary()));
+                    }
+
+                    serverData.getAckLock().lock();
+                    try {
+                        serverData.getAck().updateMax(AERequest.getAck());
+
+                        // remove from the log the operations acknowledged by all participants
+                        if (SimulationData.getInstance().purge()) {
+                            serverData.purgeLog();
+                        }
+                    } finally {
+                        serverData.getAckLock().unlock();
                     }
 
-                    // send and "end of TSAE session" message
-                    out.writeObject(endTSAEMessage(current_session_number));
+                    // send and "end of TSAE session" message (symmetric protocol: already sent)
+                    if (!symmetric) {
+                        channel.writeObject(endTSAEMessage(current_session_number));
+                        channel.flush();
+                    }
                 }
+                return end();
 
-            }
-            socket.close();
-        } catch (ClassNotFoundException e) {
-            // TODO Auto-generated catch block
-            LSimLogger.log(Level.FATAL, "[TSAESessionPartnerSide] [session: " + current_session_number + "]" + e.getMessage());
-            e.printStackTrace();
-            System.exit(1);
-        } catch (IOException e) {
+            default:
+                return false;
         }
+    }
+
+    /**
+     * Sends to the originator the operations it misses and local's summary and ack
+     * (symmetric protocol: summary and ack first, and then the operations and the end of the session)
+     */
+    private boolean request(MessageAErequest msg) throws IOException {
+        AERequest = msg;
+        TimestampVector originatorSummary = AERequest.getSummary();
+        // operations are compressed if the originator is able to read them
+        channel.setCompression(serverData.getPeerStates().compression(AERequest.getSender()));
+
+        // send operations (the ones that fit in the window of the session)
+        List<Operation> operations = serverData.getLog().listNewer(originatorSummary);
+        List<Operation> window = OperationTransfer.window(operations, serverData.getCatchUpWindow());
+        partial = window.size() < operations.size();
+        if (!symmetric) {
+            OperationTransfer.send(channel, window,
+                    serverData.getOperationBatchSize(), current_session_number, "TSAESessionPartnerSide");
+        }
+
+        // send to originator: local's summary and ack (only the changes from the state held by the originator)
+        localSummary = serverData.getSummary().clone();
+        serverData.getAckLock().lock();
+        try {
+            localAck = serverData.getAck().clone();
+            serverData.getAck().update(serverData.getId(), localSummary);
+        } finally {
+            serverData.getAckLock().unlock();
+        }
+        MessageAErequest reply = serverData.getPeerStates().encode(serverData.getId(), AERequest.getSender(), localSummary, localAck);
+        // (sent without holding the lock)
+        reply.setProtocolVersion(symmetric ? MessageAErequest.PROTOCOL_SYMMETRIC : MessageAErequest.PROTOCOL_SEQUENTIAL);
+        reply.setSessionNumber(current_session_number);
+        channel.writeObject(reply);
+        // (symmetric protocol: the originator starts sending its operations as soon as it receives it)
+        channel.flush();
+        LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] sent message: " + reply);
+
+        // symmetric protocol: send operations (the ones in local's summary at least) and the end of the session
+        if (symmetric) {
+            OperationTransfer.send(channel, window,
+                    serverData.getOperationBatchSize(), current_session_number, "TSAESessionPartnerSide");
+            channel.writeObject(endTSAEMessage(current_session_number));
+            channel.flush();
+        }
+
+        state = State.OPERATIONS;
+        return true;
+    }
+
+    /**
+     * @return true if the digests of originator's summary and ack match the local ones
+     */
+    private boolean inSync(MessageAErequest msg) {
+        if (!msg.hasDigests()) {
+            return false;
+        }
+        TimestampVector summary = serverData.getSummary().clone();
+        serverData.getAckLock().lock();
+        try {
+            // (as the originator does before computing them)
+            serverData.getAck().update(serverData.getId(), summary);
+            return summary.digest() == msg.getSummaryDigest()
+                    && serverData.getAck().digest() == msg.getAckDigest();
+        } finally {
+            serverData.getAckLock().unlock();
+        }
+    }
+
+    public void expire() {
+        LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] deadline expired in state " + state);
+        end();
+    }
 
+    private boolean end() {
+        state = State.ENDED;
         LSimLogger.log(Level.TRACE, "[TSAESessionPartnerSide] [session: " + current_session_number + "] End TSAE session");
+        return false;
     }
 
     private MessageEndTSAE endTSAEMessage(int current_session_number) {
         MessageEndTSAE msg = new MessageEndTSAE();
+        msg.setPartial(partial);
         msg.setSessionNumber(current_session_number);
         LSimLogger.log(Level.TRACE, "[TSAESessionOriginatorSide] [session: " + current_session_number + "] sent message: " + msg);
         return msg;
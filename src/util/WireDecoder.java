@@ -0,0 +1,175 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reads the frames written by a WireEncoder. The buffer of the frame is
+ * reused, and the tables of identifiers and references are kept across frames.
+ */
+public class WireDecoder {
+    private byte[] buffer = new byte[256];
+    private int position = 0;
+    private int limit = 0;
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<Object> references = new ArrayList<>();
+    // returns the instance of an identifier that is kept (e.g. an interned one)
+    private final UnaryOperator<String> interner;
+
+    public WireDecoder(UnaryOperator<String> interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * @return a buffer of (at least) length bytes where the next frame has to be read
+     */
+    public byte[] buffer(int length) {
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(buffer.length * 2, length)];
+        }
+        return buffer;
+    }
+
+    /**
+     * Starts decoding the frame of length bytes read into buffer(length)
+     */
+    public void start(int length) {
+        position = 0;
+        limit = length;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (bytes < 0) {
+            throw new IOException("Malformed frame: negative length " + bytes);
+        }
+        // (compared with the remaining bytes, as position + bytes may overflow)
+        if (bytes > limit - position) {
+            throw new EOFException("Truncated frame");
+        }
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buffer[position++] & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value != (int) value) {
+            throw new IOException("Malformed varint: " + value + " does not fit in an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads the number of items that follow, each of them written in one byte
+     * at least, so that a corrupted count cannot allocate more than the frame.
+     */
+    public int readCount() throws IOException {
+        int count = readVarInt();
+        require(count);
+        return count;
+    }
+
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length == -1) {
+            return null;
+        }
+        require(length);
+        String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+
+    public String readId() throws IOException {
+        int index = readVarInt();
+        if (index == 0) {
+            return null;
+        }
+        if (index == 1) {
+            String id = interner.apply(readString());
+            ids.add(id);
+            return id;
+        }
+        if (index - 2 >= ids.size()) {
+            throw new IOException("Unknown identifier " + (index - 2));
+        }
+        return ids.get(index - 2);
+    }
+
+    /**
+     * @return the object referred to, or null if a new object follows (that the
+     * caller has to read and then pass to register)
+     */
+    public Object readReference() throws IOException {
+        int index = readVarInt();
+        if (index == 0) {
+            return null;
+        }
+        if (index - 1 >= references.size()) {
+            throw new IOException("Unknown reference " + (index - 1));
+        }
+        return references.get(index - 1);
+    }
+
+    /**
+     * Records the object read after a readReference that returned null
+     */
+    public void register(Object obj) {
+        references.add(obj);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes values in a compact binary form into a reusable buffer: varints
+ * (zigzag encoded, so small negative numbers are short too), strings and
+ * identifiers written once per stream and then referred to by their index.
+ * <p>
+ * The buffer holds a single frame (see reset). The tables of identifiers and
+ * references are kept across frames, as the WireDecoder that reads them.
+ */
+public class WireEncoder {
+    private byte[] buffer = new byte[256];
+    private int size = 0;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Object, Integer> references = new IdentityHashMap<>();
+
+    /**
+     * Starts a new frame (identifiers and references already written are kept)
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return the buffer with the frame (only the first size() bytes)
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + bytes)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buffer[size++] = (byte) b;
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? 1 : 0);
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value);
+    }
+
+    public void writeVarLong(long value) {
+        ensure(10);
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[size++] = (byte) v;
+    }
+
+    /**
+     * Writes value in 8 bytes (for values that are not small, as hashes)
+     */
+    public void writeLong(long value) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    /**
+     * Writes a string (or null) in UTF-8
+     */
+    public void writeString(String s) {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Writes an identifier (or null). Only its first occurrence in the stream
+     * is written as a string; the next ones are written as its index.
+     */
+    public void writeId(String id) {
+        if (id == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer index = ids.get(id);
+        if (index != null) {
+            writeVarInt(index + 2);
+            return;
+        }
+        writeVarInt(1);
+        writeString(id);
+        ids.put(id, ids.size());
+    }
+
+    /**
+     * Writes a reference to obj if it has already been written in the stream.
+     * Otherwise it is recorded and the caller has to write obj right after.
+     *
+     * @return true if obj had already been written
+     */
+    public boolean writeReference(Object obj) {
+        Integer index = references.get(obj);
+        if (index != null) {
+            writeVarInt(index + 1);
+            return true;
+        }
+        writeVarInt(0);
+        references.put(obj, references.size());
+        return false;
+    }
+}
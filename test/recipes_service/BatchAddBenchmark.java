@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service;
+
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.Host;
+import recipes_service.communication.Hosts;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recipes/s added by ServerData with one addRecipe call per recipe and with
+ * addRecipes batches. Each run starts from an empty server; the first round
+ * only warms up the JVM.
+ * <p>
+ * Usage: BatchAddBenchmark recipes batchSize rounds
+ */
+public class BatchAddBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int recipes = Integer.parseInt(args[0]);
+        int batchSize = Integer.parseInt(args[1]);
+        int rounds = Integer.parseInt(args[2]);
+
+        SimulationData.getInstance().connect();
+        for (int round = 0; round <= rounds; round++) {
+            for (boolean batch : new boolean[] { false, true }) {
+                ServerData serverData = newServerData();
+                long start = System.nanoTime();
+                if (batch) {
+                    for (int first = 0; first < recipes; first += batchSize) {
+                        Map<String, String> titles = new LinkedHashMap<>();
+                        for (int i = first; i < Math.min(recipes, first + batchSize); i++) {
+                            titles.put("title" + i, "recipe");
+                        }
+                        serverData.addRecipes(titles);
+                    }
+                } else {
+                    for (int i = 0; i < recipes; i++) {
+                        serverData.addRecipe("title" + i, "recipe");
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                serverData.stopTSAEsessions();
+                if (round > 0) {
+                    out.printf("%s: %.0f recipes/s%n", batch ? "addRecipes (batches of " + batchSize + ")" : "addRecipe", recipes / seconds);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static ServerData newServerData() {
+        Host local = new Host("127.0.0.1", 1);
+        Hosts hosts = new Hosts(local);
+        for (int i = 1; i <= 5; i++) {
+            hosts.add(new Host("127.0.0.1", i));
+        }
+        ServerData serverData = new ServerData();
+        serverData.setId(local.getId());
+        serverData.setSessionDelay(1000000);
+        serverData.setSessionPeriod(1000000);
+        serverData.startTSAE(hosts);
+        return serverData;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service;
+
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.Host;
+import recipes_service.communication.Hosts;
+import recipes_service.tsae.sessions.TSAESessionOriginatorSide;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TSAE sessions/s of a cluster of servers run in this JVM, each of them with
+ * its ServerPartnerSide listening on a local port. In each round every server
+ * adds a recipe and then runs a session with each of the other servers; the
+ * first rounds only warm up the JVM.
+ * <p>
+ * It is run once per stream buffer size given, so the sessions/s of unbuffered
+ * (0) and buffered DS streams can be compared, with one connection per session
+ * (single) or with pooled connections (pooled).
+ * <p>
+ * Usage: SessionBenchmark nodes rounds single|pooled streamBufferSize...
+ * <br>e.g.: SessionBenchmark 5 200 single 0 8192
+ */
+public class SessionBenchmark {
+
+    private static final int WARMUP_ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int nodes = Integer.parseInt(args[0]);
+        int rounds = Integer.parseInt(args[1]);
+        boolean pooled = args[2].equals("pooled");
+
+        SimulationData.getInstance().connect();
+        int port = 20000;
+        for (int i = 3; i < args.length; i++) {
+            int streamBufferSize = Integer.parseInt(args[i]);
+            List<ServerData> cluster = startCluster(nodes, port, pooled, streamBufferSize);
+            port += 10 * nodes;
+
+            run(cluster, WARMUP_ROUNDS);
+            long start = System.nanoTime();
+            run(cluster, rounds);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            out.printf("%d nodes, %s connections, stream buffer %d: %.0f sessions/s%n", nodes,
+                    pooled ? "pooled" : "single", streamBufferSize, rounds * nodes * (nodes - 1) / seconds);
+            for (ServerData serverData : cluster) {
+                serverData.setEnd();
+                serverData.stopTSAEsessions();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(List<ServerData> cluster, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (ServerData serverData : cluster) {
+                serverData.addRecipe(serverData.getId() + "-" + round + "-" + System.nanoTime(), "recipe");
+            }
+            for (ServerData serverData : cluster) {
+                new TSAESessionOriginatorSide(serverData).sessionWithN(cluster.size() - 1).join();
+            }
+        }
+    }
+
+    /**
+     * Starts nodes servers (with their ServerPartnerSide) that know each other
+     */
+    private static List<ServerData> startCluster(int nodes, int port, boolean pooled, int streamBufferSize) {
+        List<ServerData> cluster = new ArrayList<>();
+        List<ServerPartnerSide> partners = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            ServerData serverData = new ServerData();
+            serverData.setSessionDelay(1000000);
+            serverData.setSessionPeriod(1000000);
+            serverData.setPooledConnections(pooled);
+            serverData.setStreamBufferSize(streamBufferSize);
+            ServerPartnerSide partner = new ServerPartnerSide(port + 10 * i, serverData);
+            partner.setDaemon(true);
+            partner.start();
+            partner.waitServicePublished();
+            cluster.add(serverData);
+            partners.add(partner);
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            Hosts hosts = new Hosts(new Host("127.0.0.1", partners.get(i).getPort()));
+            for (ServerPartnerSide partner : partners) {
+                hosts.add(new Host("127.0.0.1", partner.getPort()));
+            }
+            ServerData serverData = cluster.get(i);
+            serverData.setId(new Host("127.0.0.1", partners.get(i).getPort()).getId());
+            serverData.startTSAE(hosts);
+            serverData.notifyServerConnected();
+        }
+        return cluster;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import communication.ObjectInputStream_DS;
+import communication.ObjectOutputStream_DS;
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.data.RemoveOperation;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+import util.Check;
+import util.WireDecoder;
+import util.WireEncoder;
+
+/**
+ * BinaryCodec: the messages read are the ones written (through the DS
+ * streams, with and without compression), and corrupted frames are rejected.
+ */
+public class BinaryCodecTest {
+
+	private static final List<String> PARTICIPANTS = Arrays.asList("127.0.0.1:35001", "127.0.0.1:35002", "127.0.0.1:35003");
+
+	public BinaryCodecTest(){
+		// (the DS streams only read and write while connected)
+		SimulationData.getInstance().connect();
+	}
+
+	/**
+	 * @return messages written by a BinaryCodec and read by another one
+	 */
+	private static List<Message> roundTrip(List<Message> messages, boolean compress) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream_DS out = new ObjectOutputStream_DS(bytes);
+		if (compress){
+			out.setCompression(6, 64);
+		}
+		BinaryCodec writer = new BinaryCodec();
+		for (Message msg : messages){
+			writer.write(out, msg, compress);
+		}
+		out.flush();
+
+		ObjectInputStream_DS in = new ObjectInputStream_DS(new ByteArrayInputStream(bytes.toByteArray()));
+		BinaryCodec reader = new BinaryCodec();
+		List<Message> read = new ArrayList<Message>();
+		for (int i = 0; i < messages.size(); i++){
+			read.add(reader.read(in));
+		}
+		return read;
+	}
+
+	private static Operation add(String host, long seqnumber){
+		Timestamp timestamp = new Timestamp(host, seqnumber);
+		return new AddOperation(new Recipe("title " + host + " " + seqnumber, "recipe \u00e0 la carte " + seqnumber, host, timestamp), timestamp);
+	}
+
+	private static void checkOperation(Operation expected, Operation actual){
+		Check.equal(expected, actual, "operation");
+		Check.equal(expected.getTimestamp(), actual.getTimestamp(), "timestamp of the operation");
+	}
+
+	private static TimestampVector summary(long... seqnumbers){
+		TimestampVector summary = new TimestampVector(PARTICIPANTS);
+		for (int i = 0; i < seqnumbers.length; i++){
+			summary.updateTimestamp(new Timestamp(PARTICIPANTS.get(i), seqnumbers[i]));
+		}
+		return summary;
+	}
+
+	private static TimestampMatrix ack(){
+		TimestampMatrix ack = new TimestampMatrix(PARTICIPANTS);
+		ack.update(PARTICIPANTS.get(0), summary(5, 3, 1));
+		ack.update(PARTICIPANTS.get(1), summary(4, 3));
+		return ack;
+	}
+
+	public void testOperationsAreReadAsWritten() throws IOException{
+		for (boolean compress : new boolean[] {false, true}){
+			Operation remove = new RemoveOperation("title", new Timestamp(PARTICIPANTS.get(1), 2), new Timestamp(PARTICIPANTS.get(0), 9));
+			List<Operation> batch = new ArrayList<Operation>();
+			for (int i = 0; i < 300; i++){
+				batch.add(add(PARTICIPANTS.get(i % 3), i));
+			}
+			Message single = new MessageOperation(add(PARTICIPANTS.get(2), 7));
+			single.setSessionNumber(41);
+			Message batchMessage = new MessageOperationBatch(batch);
+			batchMessage.setSessionNumber(42);
+
+			List<Message> read = roundTrip(Arrays.asList(single, new MessageOperation(remove), batchMessage), compress);
+
+			Check.equal(41, read.get(0).getSessionNumber(), "session number");
+			checkOperation(((MessageOperation) single).getOperation(), ((MessageOperation) read.get(0)).getOperation());
+			checkOperation(remove, ((MessageOperation) read.get(1)).getOperation());
+			Check.equal(42, read.get(2).getSessionNumber(), "session number");
+			List<Operation> readBatch = ((MessageOperationBatch) read.get(2)).getOperations();
+			Check.equal(batch.size(), readBatch.size(), "operations of the batch");
+			for (int i = 0; i < batch.size(); i++){
+				checkOperation(batch.get(i), readBatch.get(i));
+			}
+		}
+	}
+
+	public void testRequestIsReadAsWritten() throws IOException{
+		MessageAErequest request = new MessageAErequest(summary(5, 3, 1), ack());
+		request.setVersion(PARTICIPANTS.get(0), 12, 7);
+		request.setProtocolVersion(MessageAErequest.PROTOCOL_SYMMETRIC);
+		request.setCodecVersion(BinaryCodec.VERSION);
+		request.setCompression(true);
+		request.setDigests(request.getSummary().digest(), request.getAck().digest());
+		request.setSessionNumber(3);
+
+		// (the second request refers to the participants written with the first one)
+		List<Message> read = roundTrip(Arrays.asList(request, request), false);
+		for (Message msg : read){
+			MessageAErequest readRequest = (MessageAErequest) msg;
+			Check.equal(3, readRequest.getSessionNumber(), "session number");
+			Check.equal(PARTICIPANTS.get(0), readRequest.getSender(), "sender");
+			Check.equal(12, readRequest.getVersion(), "version");
+			Check.equal(7, readRequest.getKnownVersion(), "known version");
+			Check.isTrue(readRequest.isSymmetric(), "symmetric protocol");
+			Check.equal(BinaryCodec.VERSION, readRequest.getCodecVersion(), "codec version");
+			Check.isTrue(readRequest.acceptsCompression(), "compression accepted");
+			Check.isTrue(request.getSummary().equals(readRequest.getSummary()), "summary");
+			Check.equal(request.getAck().toString(), readRequest.getAck().toString(), "ack");
+			Check.equal(request.getSummaryDigest(), readRequest.getSummaryDigest(), "digest of the summary");
+			Check.equal(request.getAckDigest(), readRequest.getAckDigest(), "digest of the ack");
+			Check.equal(request.getAck().digest(), readRequest.getAck().digest(), "digest of the ack read");
+		}
+	}
+
+	public void testDeltaRequestIsReadAsWritten() throws IOException{
+		TimestampVector baseSummary = summary(5, 3, 1);
+		TimestampMatrix baseAck = ack();
+		TimestampVector summary = baseSummary.clone();
+		summary.updateTimestamp(new Timestamp(PARTICIPANTS.get(2), 8));
+		TimestampMatrix ack = baseAck.clone();
+		ack.update(PARTICIPANTS.get(2), summary);
+
+		MessageAErequest request = new MessageAErequest(4, summary.diff(baseSummary), ack.diff(baseAck));
+		request.setVersion(PARTICIPANTS.get(1), 5, MessageAErequest.NO_VERSION);
+
+		MessageAErequest read = (MessageAErequest) roundTrip(Arrays.<Message>asList(request), false).get(0);
+		Check.isTrue(read.isDelta(), "delta");
+		Check.equal(4, read.getBaseVersion(), "base version");
+		Check.equal(MessageAErequest.NO_VERSION, read.getKnownVersion(), "known version");
+		Check.isTrue(summary.equals(baseSummary.patch(read.getSummaryDelta())), "patched summary");
+		Check.equal(ack.toString(), baseAck.patch(read.getAckDelta()).toString(), "patched ack");
+	}
+
+	public void testControlMessagesAreReadAsWritten() throws IOException{
+		MessageEndTSAE partial = new MessageEndTSAE();
+		partial.setPartial(true);
+		List<Message> read = roundTrip(Arrays.asList(MessageAErequest.fullStateRequest(PARTICIPANTS.get(2)),
+				new MessageEndTSAE(), partial, new MessageConnect()), false);
+
+		MessageAErequest fullStateRequest = (MessageAErequest) read.get(0);
+		Check.isTrue(fullStateRequest.isFullStateRequired(), "full state required");
+		Check.equal(PARTICIPANTS.get(2), fullStateRequest.getSender(), "sender");
+		Check.isNull(fullStateRequest.getSummary(), "summary of a full-state request");
+		Check.isFalse(((MessageEndTSAE) read.get(1)).isPartial(), "partial end");
+		Check.isTrue(((MessageEndTSAE) read.get(2)).isPartial(), "partial end");
+		Check.equal(MsgType.CONNECT, read.get(3).type(), "type");
+	}
+
+	private static WireDecoder decoderOf(WireEncoder encoder){
+		WireDecoder decoder = new WireDecoder(id -> id);
+		System.arraycopy(encoder.buffer(), 0, decoder.buffer(encoder.size()), 0, encoder.size());
+		decoder.start(encoder.size());
+		return decoder;
+	}
+
+	private static void checkRejected(WireEncoder encoder, String message){
+		try {
+			decoderOf(encoder).readString();
+		} catch (IOException e){
+			return;
+		}
+		throw new AssertionError(message + " has been read");
+	}
+
+	public void testCorruptedLengthsAreRejected(){
+		// a length of 5 (written as 6: 0 is null) followed by 1 byte
+		WireEncoder truncated = new WireEncoder();
+		truncated.writeVarInt(6);
+		truncated.writeByte('t');
+		checkRejected(truncated, "a truncated string");
+
+		for (long length : new long[] {Integer.MAX_VALUE, -5, 1L << 40}){
+			WireEncoder corrupted = new WireEncoder();
+			corrupted.writeVarLong(length);
+			corrupted.writeByte(1);
+			checkRejected(corrupted, "a string of length " + length);
+		}
+	}
+}
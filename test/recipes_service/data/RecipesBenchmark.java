@@ -0,0 +1,81 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.data;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import recipes_service.tsae.data_structures.Timestamp;
+
+/**
+ * Time per getRandomRecipeTitle call, compared with the walk of the sorted titles
+ * that picked a random title before the dense index of titles (a random number of
+ * steps, up to 10000, from the first title).
+ * <p>
+ * Usage: RecipesBenchmark recipes calls
+ */
+public class RecipesBenchmark {
+
+	public static void main(String[] args){
+		int n = Integer.parseInt(args[0]);
+		int calls = Integer.parseInt(args[1]);
+
+		Recipes recipes = new Recipes();
+		TreeSet<String> titles = new TreeSet<String>();
+		for (int i = 0; i < n; i++){
+			recipes.add(new Recipe("title" + i, "recipe", "host", new Timestamp("host", i)));
+			titles.add("title" + i);
+		}
+
+		for (int round = 0; round < 3; round++){
+			long start = System.nanoTime();
+			int found = 0;
+			for (int i = 0; i < calls; i++){
+				if (recipes.getRandomRecipeTitle() != null){
+					found++;
+				}
+			}
+			double index = (System.nanoTime() - start) / (double) calls;
+
+			Random rnd = new Random();
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++){
+				if (walk(titles, rnd) != null){
+					found++;
+				}
+			}
+			double walk = (System.nanoTime() - start) / (double) calls;
+
+			System.out.printf("%d recipes: getRandomRecipeTitle %.0f ns/call, walk %.0f ns/call (%d titles)%n", n, index, walk, found);
+		}
+	}
+
+	private static String walk(TreeSet<String> titles, Random rnd){
+		int n = (((int)(rnd.nextDouble() *10000))%titles.size());
+		Iterator<String> it = titles.iterator();
+		String result = it.next();
+		for (int i = 0 ; i < n; i++){
+			result = it.next();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+* Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+* DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+*
+* This file is part of the practical assignment of Distributed Systems course.
+*
+* This code is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This code is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this code.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package recipes_service.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import recipes_service.tsae.data_structures.Timestamp;
+import util.Check;
+
+/**
+ * Recipes: the dense index of titles picks random titles among the recipes
+ * there are, after adds, removes and deserialization.
+ */
+public class RecipesTest {
+
+	// (with 100 titles or less, 10000 picks miss one of them with a negligible probability)
+	private static final int PICKS = 10000;
+
+	public RecipesTest(){
+		Recipes.rnd = new Random(5);
+	}
+
+	private static Recipe recipe(int i){
+		return new Recipe("title" + i, "recipe", "a", new Timestamp("a", i));
+	}
+
+	private static Set<String> picked(Recipes recipes){
+		Set<String> titles = new HashSet<String>();
+		for (int i = 0; i < PICKS; i++){
+			titles.add(recipes.getRandomRecipeTitle());
+		}
+		return titles;
+	}
+
+	private static Set<String> titles(int from, int to){
+		Set<String> titles = new HashSet<String>();
+		for (int i = from; i < to; i++){
+			titles.add("title" + i);
+		}
+		return titles;
+	}
+
+	public void testNoTitleIsPickedWithoutRecipes(){
+		Recipes recipes = new Recipes();
+		Check.isNull(recipes.getRandomRecipeTitle(), "title picked without recipes");
+		recipes.add(recipe(0));
+		recipes.remove("title0");
+		Check.isNull(recipes.getRandomRecipeTitle(), "title picked after removing the only recipe");
+	}
+
+	public void testPicksEveryAddedTitle(){
+		Recipes recipes = new Recipes();
+		for (int i = 0; i < 50; i++){
+			recipes.add(recipe(i));
+		}
+		List<Recipe> batch = new ArrayList<Recipe>();
+		for (int i = 50; i < 100; i++){
+			batch.add(recipe(i));
+		}
+		recipes.addAll(batch);
+		// (titles already added are not indexed twice)
+		recipes.addAll(batch);
+
+		Check.equal(titles(0, 100), picked(recipes), "picked titles");
+	}
+
+	public void testNeverPicksRemovedTitles(){
+		Recipes recipes = new Recipes();
+		for (int i = 0; i < 100; i++){
+			recipes.add(recipe(i));
+		}
+		// the first, the last and the ones in between
+		for (int i = 0; i < 100; i += 2){
+			recipes.remove("title" + i);
+		}
+		recipes.remove("title99");
+		recipes.remove("unknown");
+
+		Set<String> expected = new HashSet<String>();
+		for (int i = 1; i < 99; i += 2){
+			expected.add("title" + i);
+		}
+		Check.equal(expected, picked(recipes), "picked titles");
+
+		recipes.add(recipe(0));
+		expected.add("title0");
+		Check.equal(expected, picked(recipes), "picked titles after adding a removed title");
+	}
+
+	public void testNeverPicksTitlesRemovedInABatch(){
+		Recipes recipes = new Recipes();
+		for (int i = 0; i < 100; i++){
+			recipes.add(recipe(i));
+		}
+		List<String> batch = new ArrayList<String>();
+		for (int i = 0; i < 100; i += 3){
+			batch.add("title" + i);
+		}
+		batch.add("title99");
+		batch.add("unknown");
+		recipes.removeAll(batch);
+
+		Set<String> expected = titles(0, 100);
+		expected.removeAll(batch);
+		Check.equal(expected, picked(recipes), "picked titles");
+	}
+
+	public void testIndexIsRebuiltWhenDeserialized() throws Exception{
+		Recipes recipes = new Recipes();
+		for (int i = 0; i < 40; i++){
+			recipes.add(recipe(i));
+		}
+		recipes.remove("title3");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(recipes);
+		out.close();
+		Recipes copy = (Recipes) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		Set<String> expected = titles(0, 40);
+		expected.remove("title3");
+		Check.equal(expected, picked(copy), "picked titles of the deserialized recipes");
+		copy.remove("title4");
+		expected.remove("title4");
+		Check.equal(expected, picked(copy), "picked titles after a remove");
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import util.Check;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Log and HostLog: appends over the ring of chunks, purge, restore and the
+ * reorder buffer.
+ */
+public class LogTest {
+
+    private static final List<String> PARTICIPANTS = Arrays.asList("a", "b");
+
+    static Operation op(String host, long seqnumber) {
+        Timestamp timestamp = new Timestamp(host, seqnumber);
+        return new AddOperation(new Recipe(host + seqnumber, "recipe", host, timestamp), timestamp);
+    }
+
+    static TimestampVector vector(long a, long b) {
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        vector.updateTimestamp(new Timestamp("a", a));
+        vector.updateTimestamp(new Timestamp("b", b));
+        return vector;
+    }
+
+    private static void checkOperations(List<Operation> ops, String host, long from, long to) {
+        Check.equal(to - from, ops.size(), "number of operations of " + host);
+        for (int i = 0; i < ops.size(); i++) {
+            Check.equal(op(host, from + i), ops.get(i), "operation " + i);
+        }
+    }
+
+    public void testAppendsOperationsInOrderBeyondTheInitialRing() {
+        Log log = new Log(PARTICIPANTS);
+        int n = 5 * HostLog.CHUNK_SIZE + 7;
+        for (int i = 0; i < n; i++) {
+            Check.isTrue(log.add(op("a", i)), "operation " + i + " appended");
+        }
+
+        checkOperations(log.listNewer(new TimestampVector(PARTICIPANTS)), "a", 0, n);
+        checkOperations(log.listNewer(vector(HostLog.CHUNK_SIZE + 3, -1)), "a", HostLog.CHUNK_SIZE + 4, n);
+        Check.equal(0, log.listNewer(vector(n - 1, -1)).size(), "operations newer than the last one");
+    }
+
+    public void testRejectsOperationsNotNewerThanTheLastOne() {
+        Log log = new Log(PARTICIPANTS);
+        Check.isTrue(log.add(op("a", 0)), "first operation appended");
+        Check.isFalse(log.add(op("a", 0)), "same operation appended again");
+        Check.isFalse(log.add(op("c", 0)), "operation of an unknown host appended");
+        Check.equal(1, log.listNewer(new TimestampVector(PARTICIPANTS)).size(), "operations in the log");
+    }
+
+    public void testPurgeRemovesTheOperationsAcknowledgedByAll() {
+        Log log = new Log(PARTICIPANTS);
+        for (int i = 0; i < 1000; i++) {
+            log.add(op("a", i));
+        }
+        for (int i = 0; i < 10; i++) {
+            log.add(op("b", i));
+        }
+
+        TimestampMatrix ack = new TimestampMatrix(PARTICIPANTS);
+        ack.update("a", vector(700, 9));
+        ack.update("b", vector(599, 4));
+        log.purgeLog(ack);
+
+        List<Operation> live = log.listNewer(new TimestampVector(PARTICIPANTS));
+        checkOperations(live.subList(0, 400), "a", 600, 1000);
+        checkOperations(live.subList(400, live.size()), "b", 5, 10);
+
+        Check.isTrue(log.add(op("a", 1000)), "operation appended after the purge");
+        checkOperations(log.listNewer(vector(998, 9)), "a", 999, 1001);
+    }
+
+    public void testPurgeReusesTheRing() {
+        HostLog hostLog = new HostLog();
+        int rounds = 20;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < HostLog.CHUNK_SIZE; i++) {
+                hostLog.append(op("a", (long) round * HostLog.CHUNK_SIZE + i));
+            }
+            hostLog.purge((long) round * HostLog.CHUNK_SIZE + HostLog.CHUNK_SIZE / 2);
+        }
+
+        LogView live = new LogView();
+        hostLog.all(live);
+        long last = (long) rounds * HostLog.CHUNK_SIZE;
+        checkOperations(live, "a", last - HostLog.CHUNK_SIZE / 2 + 1, last);
+        Check.equal(last, hostLog.next(), "next seqnumber");
+    }
+
+    public void testRestoredLogAppendsAfterThePurgedOperations() {
+        Log log = new Log(PARTICIPANTS);
+        log.restore(vector(99, -1));
+
+        Check.isFalse(log.add(op("a", 99)), "purged operation appended");
+        Check.isTrue(log.add(op("a", 100)), "next operation appended");
+        Check.isTrue(log.add(op("b", 0)), "first operation of a host without purged operations appended");
+        checkOperations(log.listNewer(vector(-1, 0)), "a", 100, 101);
+    }
+
+    public void testHoldsEarlyOperationsUntilTheGapIsFilled() {
+        Log log = new Log(PARTICIPANTS);
+        Check.isFalse(log.add(op("a", 2)), "early operation appended");
+        Check.isFalse(log.add(op("a", 1)), "early operation appended");
+        Check.equal(2, log.getHeldOperations(), "held operations");
+        Check.equal(0, log.listNewer(new TimestampVector(PARTICIPANTS)).size(), "operations in the log");
+
+        Check.isTrue(log.add(op("a", 0)), "operation that fills the gap appended");
+        Check.equal(0, log.getHeldOperations(), "held operations");
+        checkOperations(log.listNewer(new TimestampVector(PARTICIPANTS)), "a", 0, 3);
+    }
+
+    public void testAddAllReturnsTheReleasedOperations() {
+        Log log = new Log(PARTICIPANTS);
+        log.add(op("a", 3));
+        log.add(op("a", 2));
+
+        List<Operation> added = log.addAll(Arrays.asList(op("a", 0), op("a", 1), op("b", 0)));
+        Check.equal(Arrays.asList(op("a", 0), op("a", 1), op("a", 2), op("a", 3), op("b", 0)), added, "added operations");
+        Check.equal(0, log.getHeldOperations(), "held operations");
+    }
+
+    public void testDropsEarlyOperationsWhenTheBufferIsFull() {
+        Log log = new Log(PARTICIPANTS);
+        log.setReorderBufferSize(1);
+        log.add(op("a", 2));
+        log.add(op("a", 3));
+        Check.equal(1, log.getHeldOperations(), "held operations");
+        Check.equal(1, log.getDroppedOperations(), "dropped operations");
+
+        log.add(op("a", 0));
+        log.add(op("a", 1));
+        checkOperations(log.listNewer(new TimestampVector(PARTICIPANTS)), "a", 0, 3);
+
+        // a dropped operation is received again in a later session
+        Check.isTrue(log.add(op("a", 3)), "dropped operation appended when received again");
+    }
+
+    public void testSummaryIsLimitedToTheAppendedOperations() {
+        Log log = new Log(PARTICIPANTS);
+        log.setReorderBufferSize(1);
+        log.add(op("a", 0));
+        log.add(op("a", 2));
+        log.add(op("a", 3));
+
+        // a2 is held and a3 dropped: a summary that covers them is limited to a0
+        TimestampVector appended = log.appendedOf(vector(3, 5));
+        Check.equal(0, appended.getLast("a").getSeqnumber(), "last appended operation of a");
+        Check.equal(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, appended.getLast("b").getSeqnumber(), "last appended operation of b");
+
+        log.add(op("a", 1));
+        Check.equal(2, log.appendedOf(vector(3, -1)).getLast("a").getSeqnumber(), "last appended operation of a");
+        Check.equal(1, log.appendedOf(vector(1, -1)).getLast("a").getSeqnumber(), "operations not in the summary");
+    }
+
+    public void testDiscardsHeldOperationsThatHaveBeenAppended() {
+        Log log = new Log(PARTICIPANTS);
+        log.add(op("a", 1));
+        log.addAll(Arrays.asList(op("a", 0), op("a", 1)));
+
+        Check.equal(0, log.getHeldOperations(), "held operations");
+        checkOperations(log.listNewer(new TimestampVector(PARTICIPANTS)), "a", 0, 2);
+    }
+}
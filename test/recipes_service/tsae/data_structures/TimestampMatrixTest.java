@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import util.Check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * TimestampMatrix: copy-on-write clones, diff and patch, the column minima of
+ * minTimestampVector and the digest maintained on each write.
+ */
+public class TimestampMatrixTest {
+
+    private static final List<String> PARTICIPANTS = Arrays.asList("a", "b", "c", "d", "e");
+
+    private static TimestampVector vector(List<String> participants, long... seqnumbers) {
+        TimestampVector vector = new TimestampVector(participants);
+        for (int i = 0; i < seqnumbers.length; i++) {
+            vector.updateTimestamp(new Timestamp(participants.get(i), seqnumbers[i]));
+        }
+        return vector;
+    }
+
+    private static TimestampVector randomVector(Random random) {
+        long[] seqnumbers = new long[PARTICIPANTS.size()];
+        for (int i = 0; i < seqnumbers.length; i++) {
+            seqnumbers[i] = random.nextInt(10) == 0 ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : random.nextInt(1000);
+        }
+        return vector(PARTICIPANTS, seqnumbers);
+    }
+
+    private static long seqnumber(TimestampMatrix matrix, String row, String node) {
+        return matrix.getTimestampVector(row).getLast(node).getSeqnumber();
+    }
+
+    private static void checkSameRows(TimestampMatrix expected, TimestampMatrix actual, String message) {
+        for (String row : PARTICIPANTS) {
+            TimestampVector expectedRow = expected.getTimestampVector(row);
+            TimestampVector actualRow = actual.getTimestampVector(row);
+            Check.isTrue(expectedRow == null ? actualRow == null : expectedRow.equals(actualRow), message + ": row " + row);
+        }
+        Check.equal(expected.digest(), actual.digest(), message + ": digest");
+    }
+
+    /**
+     * @return minimum of each column of the rows of matrix (unknown entries and rows are NULL_TIMESTAMP_SEQ_NUMBER)
+     */
+    private static long[] expectedMin(TimestampMatrix matrix, List<String> participants) {
+        long[] min = new long[participants.size()];
+        Arrays.fill(min, Long.MAX_VALUE);
+        for (String row : participants) {
+            TimestampVector vector = matrix.getTimestampVector(row);
+            for (int c = 0; c < min.length; c++) {
+                Timestamp last = vector == null ? null : vector.getLast(participants.get(c));
+                min[c] = Math.min(min[c], last == null ? Timestamp.NULL_TIMESTAMP_SEQ_NUMBER : last.getSeqnumber());
+            }
+        }
+        return min;
+    }
+
+    private static void checkMin(TimestampMatrix matrix, List<String> participants, String message) {
+        long[] expected = expectedMin(matrix, participants);
+        TimestampVector min = matrix.minTimestampVector();
+        for (int c = 0; c < expected.length; c++) {
+            Check.equal(expected[c], min.getLast(participants.get(c)).getSeqnumber(), message + ": minimum of " + participants.get(c));
+        }
+    }
+
+    private static TimestampMatrix serializedCopy(TimestampMatrix matrix) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(matrix);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (TimestampMatrix) in.readObject();
+        }
+    }
+
+    public void testCloneIsASnapshot() {
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        matrix.update("a", vector(PARTICIPANTS, 1, 1));
+        TimestampMatrix clone = matrix.clone();
+
+        matrix.update("a", vector(PARTICIPANTS, 2, 2));
+        matrix.updateMax(clone);
+        Check.equal(1, seqnumber(clone, "a", "a"), "clone after writing the original");
+
+        clone.update("b", vector(PARTICIPANTS, 5));
+        Check.equal(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, seqnumber(matrix, "b", "a"), "original after writing the clone");
+    }
+
+    public void testUpdateStoresASnapshotOfTheRow() {
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        TimestampVector row = vector(PARTICIPANTS, 3);
+        matrix.update("a", row);
+        matrix.minTimestampVector();
+
+        row.updateTimestamp(new Timestamp("a", 9));
+        Check.equal(3, seqnumber(matrix, "a", "a"), "row after writing the vector passed to update");
+        checkMin(matrix, PARTICIPANTS, "minimum after writing the vector passed to update");
+    }
+
+    public void testMinTimestampVectorIsASnapshot() {
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        for (String row : PARTICIPANTS) {
+            matrix.update(row, vector(PARTICIPANTS, 4, 4));
+        }
+        TimestampVector min = matrix.minTimestampVector();
+
+        min.updateTimestamp(new Timestamp("a", 1));
+        Check.equal(4, matrix.minTimestampVector().getLast("a").getSeqnumber(), "minimum after writing a returned minimum");
+        matrix.update("b", vector(PARTICIPANTS, 2));
+        Check.equal(1, min.getLast("a").getSeqnumber(), "returned minimum after writing the matrix");
+        checkMin(matrix, PARTICIPANTS, "minimum after writing the matrix");
+    }
+
+    public void testPatchOfTheDiffRebuildsTheMatrix() {
+        Random random = new Random(11);
+        TimestampMatrix base = new TimestampMatrix(PARTICIPANTS);
+        for (String row : PARTICIPANTS) {
+            base.update(row, randomVector(random));
+        }
+        TimestampMatrix current = base.clone();
+        current.update("b", randomVector(random));
+        TimestampVector max = current.getTimestampVector("d").clone();
+        max.updateTimestamp(new Timestamp("e", 5000));
+        current.updateMax(matrixWithRow("d", max));
+
+        TimestampDelta delta = current.diff(base);
+        checkSameRows(current, base.patch(delta), "patched matrix");
+        Check.equal(0, base.clone().diff(base).size(), "entries of the delta of a clone");
+    }
+
+    private static TimestampMatrix matrixWithRow(String node, TimestampVector row) {
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        matrix.update(node, row);
+        return matrix;
+    }
+
+    public void testMinTimestampVectorIsTheMinimumOfEachColumn() {
+        Random random = new Random(13);
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        for (int i = 0; i < 2000; i++) {
+            String row = PARTICIPANTS.get(random.nextInt(PARTICIPANTS.size()));
+            switch (random.nextInt(4)) {
+            case 0:
+                matrix.update(row, randomVector(random));
+                break;
+            case 1:
+                matrix.updateMax(matrixWithRow(row, randomVector(random)));
+                break;
+            case 2:
+                matrix.update(row, null);
+                break;
+            default:
+                matrix = matrix.clone();
+            }
+            checkMin(matrix, PARTICIPANTS, "minimum after write " + i);
+        }
+    }
+
+    public void testEntriesUnknownToARowAreNotKnownByAll() {
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        for (String row : PARTICIPANTS) {
+            matrix.update(row, vector(PARTICIPANTS, 10, 10, 10, 10, 10));
+        }
+        // row a does not know e
+        matrix.update("a", vector(Arrays.asList("a", "b", "c", "d"), 10, 10, 10, 10));
+        Check.equal(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, matrix.minTimestampVector().getLast("e").getSeqnumber(), "minimum of e");
+        Check.equal(10, matrix.minTimestampVector().getLast("a").getSeqnumber(), "minimum of a");
+
+        // a new participant is not known by the other rows
+        List<String> all = new ArrayList<>(PARTICIPANTS);
+        all.add("f");
+        matrix.update("f", vector(all, 10, 10, 10, 10, 10, 10));
+        checkMin(matrix, all, "minimum after adding a participant");
+        Check.equal(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, matrix.minTimestampVector().getLast("f").getSeqnumber(), "minimum of f");
+    }
+
+    public void testDigestIsUpdatedOnEachWrite() throws Exception {
+        Random random = new Random(17);
+        TimestampMatrix matrix = new TimestampMatrix(PARTICIPANTS);
+        for (int i = 0; i < 200; i++) {
+            String row = PARTICIPANTS.get(random.nextInt(PARTICIPANTS.size()));
+            if (random.nextBoolean()) {
+                matrix.update(row, randomVector(random));
+            } else {
+                matrix.updateMax(matrixWithRow(row, randomVector(random)));
+            }
+            // (deserialization computes the digest from the rows)
+            Check.equal(serializedCopy(matrix).digest(), matrix.digest(), "digest after write " + i);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.data_structures;
+
+import util.Check;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * TimestampVector: copy-on-write clones, diff and patch, and the digest
+ * maintained on each write.
+ */
+public class TimestampVectorTest {
+
+    private static final List<String> PARTICIPANTS = Arrays.asList("a", "b", "c");
+
+    private static long seqnumber(TimestampVector vector, String node) {
+        return vector.getLast(node).getSeqnumber();
+    }
+
+    /**
+     * @return digest of vector computed from its entries
+     */
+    static long expectedDigest(TimestampVector vector) {
+        long digest = 0;
+        for (String node : vector.getParticipants()) {
+            digest += TimestampVector.entryDigest(node, seqnumber(vector, node));
+        }
+        return digest;
+    }
+
+    public void testCloneIsASnapshot() {
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        vector.updateTimestamp(new Timestamp("a", 1));
+        TimestampVector clone = vector.clone();
+
+        vector.updateTimestamp(new Timestamp("a", 2));
+        Check.equal(1, seqnumber(clone, "a"), "clone after writing the original");
+
+        clone.updateTimestamp(new Timestamp("b", 7));
+        Check.equal(Timestamp.NULL_TIMESTAMP_SEQ_NUMBER, seqnumber(vector, "b"), "original after writing the clone");
+        Check.equal(2, seqnumber(vector, "a"), "original after writing the clone");
+    }
+
+    public void testUpdateMaxAndMergeMin() {
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        vector.updateTimestamp(new Timestamp("a", 5));
+        vector.updateTimestamp(new Timestamp("b", 1));
+        TimestampVector other = new TimestampVector(PARTICIPANTS);
+        other.updateTimestamp(new Timestamp("a", 3));
+        other.updateTimestamp(new Timestamp("b", 4));
+
+        TimestampVector max = vector.clone();
+        max.updateMax(other);
+        Check.equal(5, seqnumber(max, "a"), "max of a");
+        Check.equal(4, seqnumber(max, "b"), "max of b");
+
+        TimestampVector min = vector.clone();
+        min.mergeMin(other);
+        Check.equal(3, seqnumber(min, "a"), "min of a");
+        Check.equal(1, seqnumber(min, "b"), "min of b");
+        Check.equal(5, seqnumber(vector, "a"), "merged vector after the merges");
+    }
+
+    public void testCopySeqnumbersAlignsToTheRegistry() {
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        vector.updateTimestamp(new Timestamp("b", 4));
+        ParticipantRegistry registry = vector.getRegistry();
+        long[] copy = new long[registry.size()];
+        vector.copySeqnumbers(registry, -7, copy);
+        Check.equal(4, copy[registry.slot("b")], "copied seqnumber of b");
+
+        vector.updateTimestamp(new Timestamp("b", 5));
+        Check.equal(4, copy[registry.slot("b")], "copy after writing the vector");
+
+        ParticipantRegistry other = registry.with("z");
+        copy = new long[other.size()];
+        vector.copySeqnumbers(other, -7, copy);
+        Check.equal(5, copy[other.slot("b")], "copied seqnumber of b in another registry");
+        Check.equal(-7, copy[other.slot("z")], "copied seqnumber of an unknown participant");
+    }
+
+    public void testPatchOfTheDiffRebuildsTheVector() {
+        TimestampVector base = new TimestampVector(PARTICIPANTS);
+        base.updateTimestamp(new Timestamp("a", 10));
+        base.updateTimestamp(new Timestamp("b", 20));
+        TimestampVector current = base.clone();
+        current.updateTimestamp(new Timestamp("b", 25));
+        current.updateTimestamp(new Timestamp("c", 0));
+
+        TimestampDelta delta = current.diff(base);
+        Check.equal(2, delta.size(), "entries of the delta");
+        TimestampVector patched = base.patch(delta);
+        Check.isTrue(patched.equals(current), "patched vector equals current: " + patched + " " + current);
+        Check.equal(current.digest(), patched.digest(), "digest of the patched vector");
+
+        Check.equal(0, base.clone().diff(base).size(), "entries of the delta of a clone");
+    }
+
+    public void testDiffWithOtherParticipantsIsNull() {
+        TimestampVector base = new TimestampVector(PARTICIPANTS);
+        TimestampVector current = base.clone();
+        current.updateTimestamp(new Timestamp("d", 0));
+
+        Check.isNull(current.diff(base), "delta from a base with other participants");
+        Check.isNull(current.patch(base.clone().diff(base)), "patch of a delta with other participants");
+    }
+
+    public void testDigestIsUpdatedOnEachWrite() {
+        Random random = new Random(7);
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        for (int i = 0; i < 1000; i++) {
+            String node = "n" + random.nextInt(6);
+            if (random.nextBoolean()) {
+                vector.updateTimestamp(new Timestamp(node, random.nextInt(100)));
+            } else {
+                TimestampVector other = new TimestampVector(PARTICIPANTS);
+                other.updateTimestamp(new Timestamp(node, random.nextInt(100)));
+                vector.updateMax(other);
+            }
+            Check.equal(expectedDigest(vector), vector.digest(), "digest after write " + i);
+        }
+    }
+
+    public void testEqualVectorsHaveTheSameDigest() {
+        TimestampVector vector = new TimestampVector(PARTICIPANTS);
+        vector.updateTimestamp(new Timestamp("a", 3));
+        vector.updateTimestamp(new Timestamp("d", 1));
+        // the same entries, in other slots
+        TimestampVector other = new TimestampVector(Arrays.asList("d", "c", "b", "a"));
+        other.updateTimestamp(new Timestamp("d", 1));
+        other.updateTimestamp(new Timestamp("a", 3));
+
+        Check.isTrue(vector.equals(other), "vectors with the same entries are equal");
+        Check.equal(vector.digest(), other.digest(), "digest of vectors with the same entries");
+        other.updateTimestamp(new Timestamp("a", 4));
+        Check.isTrue(vector.digest() != other.digest(), "digest of different vectors");
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.persistence;
+
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.tsae.data_structures.Timestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable operations per second of the write-ahead log: each writer thread
+ * appends an operation and waits until it is on the storage device.
+ * <p>
+ * Usage: WriteAheadLogBenchmark threads seconds commitDelay
+ * (commitDelay in milliseconds; -1: no group commit, each writer forces the pages)
+ */
+public class WriteAheadLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int threads = Integer.parseInt(args[0]);
+        long seconds = Long.parseLong(args[1]);
+        long commitDelay = Long.parseLong(args[2]);
+
+        File folder = Files.createTempDirectory("wal-benchmark").toFile();
+        WriteAheadLog wal = new WriteAheadLog(folder, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        wal.recover(checkpoint -> {
+        }, op -> {
+        });
+        if (commitDelay >= 0) {
+            wal.startGroupCommit(commitDelay, 1024);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong durable = new AtomicLong();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String host = "host" + t;
+            writers[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    while (!stop.get()) {
+                        Timestamp timestamp = new Timestamp(host, n);
+                        Operation op = new AddOperation(new Recipe("title" + n, "recipe", host, timestamp), timestamp);
+                        wal.sync(wal.append(timestamp, wal.encode(op)));
+                        n++;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                durable.addAndGet(n);
+            });
+            writers[t].start();
+        }
+        Thread.sleep(seconds * 1000);
+        stop.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        wal.close();
+
+        out.printf("%d writers, commitDelay %d: %.0f durable ops/s%n",
+                threads, commitDelay, durable.get() / (double) seconds);
+
+        for (File segment : folder.listFiles()) {
+            segment.delete();
+        }
+        folder.delete();
+        System.exit(0);
+    }
+}
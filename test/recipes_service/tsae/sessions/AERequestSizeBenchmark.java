@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.sessions;
+
+import recipes_service.communication.MessageAErequest;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampMatrix;
+import recipes_service.tsae.data_structures.TimestampVector;
+import util.Serializer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Size of the AE requests exchanged by two nodes of a stable cluster: the
+ * first request carries the full summary and ack, the next ones the entries
+ * changed since the state held by the partner (a few operations per session).
+ * <p>
+ * Usage: AERequestSizeBenchmark nodes sessions
+ */
+public class AERequestSizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int nodes = Integer.parseInt(args[0]);
+        int sessions = Integer.parseInt(args[1]);
+
+        List<String> participants = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            participants.add("node" + i);
+        }
+        String local = participants.get(0);
+        String partner = participants.get(1);
+
+        // a stable cluster: every node has seen about the same operations
+        Random rnd = new Random(1);
+        TimestampVector summary = new TimestampVector(participants);
+        for (String node : participants) {
+            summary.updateTimestamp(new Timestamp(node, 1000 + rnd.nextInt(10)));
+        }
+        TimestampMatrix ack = new TimestampMatrix(participants);
+        for (String node : participants) {
+            // (each node has acknowledged a slightly different state)
+            TimestampVector row = summary.clone();
+            row.updateTimestamp(new Timestamp(node, 990 + rnd.nextInt(10)));
+            ack.update(node, row);
+        }
+        TimestampVector partnerSummary = summary.clone();
+        TimestampMatrix partnerAck = ack.clone();
+
+        PeerStates localStates = new PeerStates();
+        PeerStates partnerStates = new PeerStates();
+        for (int session = 0; session < sessions; session++) {
+            // some new operations since the last session
+            for (int i = 0; i < 3; i++) {
+                String node = participants.get(rnd.nextInt(nodes));
+                summary.updateTimestamp(new Timestamp(node, summary.getLast(node).getSeqnumber() + 1));
+            }
+            ack.update(local, summary);
+
+            MessageAErequest request = localStates.encode(local, partner, summary.clone(), ack.clone());
+            byte[] bytes = Serializer.serialize(request);
+            if (!partnerStates.decode((MessageAErequest) Serializer.deserialize(bytes))) {
+                throw new IllegalStateException("the partner does not hold the base of the delta");
+            }
+            out.printf("session %d: %s request, %d bytes%n", session, request.isDelta() ? "delta" : "full", bytes.length);
+
+            // the reply tells the local node which state the partner holds
+            MessageAErequest reply = partnerStates.encode(partner, local, partnerSummary.clone(), partnerAck.clone());
+            localStates.decode((MessageAErequest) Serializer.deserialize(Serializer.serialize(reply)));
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package recipes_service.tsae.sessions;
+
+import recipes_service.ServerData;
+import recipes_service.activity_simulation.SimulationData;
+import recipes_service.communication.Host;
+import recipes_service.communication.Hosts;
+import recipes_service.communication.MessageOperationBatch;
+import recipes_service.data.AddOperation;
+import recipes_service.data.Operation;
+import recipes_service.data.Recipe;
+import recipes_service.tsae.data_structures.Timestamp;
+import recipes_service.tsae.data_structures.TimestampVector;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of a server whose TSAE state is used at the same time by:
+ * <ul>
+ * <li>writers: local addRecipe calls</li>
+ * <li>readers: recipe lookups (get and contains), and a summary snapshot every 16 lookups</li>
+ * <li>mergers: batches of 16 operations of another host applied as a session does
+ * (log, recipes and checkpoint of the summary), and every 4 batches the summary
+ * and ack snapshot that starts a session</li>
+ * </ul>
+ * Usage: ConcurrencyBenchmark writers readers mergers seconds
+ */
+public class ConcurrencyBenchmark {
+
+    private static final int BATCH = 16;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int writers = Integer.parseInt(args[0]);
+        int readers = Integer.parseInt(args[1]);
+        int mergers = Integer.parseInt(args[2]);
+        long seconds = Long.parseLong(args[3]);
+
+        SimulationData.getInstance().connect();
+        Hosts hosts = new Hosts(new Host("127.0.0.1", 1));
+        for (int i = 1; i <= mergers + 1; i++) {
+            hosts.add(new Host("127.0.0.1", i));
+        }
+        ServerData serverData = new ServerData();
+        serverData.setId(new Host("127.0.0.1", 1).getId());
+        serverData.setSessionDelay(1000000);
+        serverData.setSessionPeriod(1000000);
+        serverData.startTSAE(hosts);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong writes = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong merged = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            String prefix = "w" + w + "_";
+            threads.add(new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    serverData.addRecipe(prefix + n, "recipe");
+                    n++;
+                }
+                writes.addAndGet(n);
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                Random rnd = new Random();
+                long n = 0;
+                while (!stop.get()) {
+                    String title = "w0_" + rnd.nextInt(100000);
+                    serverData.getRecipes().get(title);
+                    serverData.getRecipes().contains(title);
+                    if ((n & 15) == 0) {
+                        serverData.getSummary().clone().digest();
+                    }
+                    n++;
+                }
+                reads.addAndGet(n);
+            }));
+        }
+        for (int m = 0; m < mergers; m++) {
+            String host = new Host("127.0.0.1", m + 2).getId();
+            threads.add(new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    List<Operation> ops = new ArrayList<>(BATCH);
+                    for (int k = 0; k < BATCH; k++) {
+                        Timestamp timestamp = new Timestamp(host, n * BATCH + k);
+                        ops.add(new AddOperation(new Recipe(host + "_" + timestamp.getSeqnumber(), "recipe", host, timestamp), timestamp));
+                    }
+                    OperationTransfer.apply(serverData, new MessageOperationBatch(ops));
+                    if ((n & 3) == 0) {
+                        snapshot(serverData);
+                    }
+                    n++;
+                }
+                merged.addAndGet(n * BATCH);
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        out.printf("%d writers, %d readers, %d mergers: %.0f writes/s, %.0f reads/s, %.0f merged ops/s%n",
+                writers, readers, mergers,
+                writes.get() / (double) seconds, reads.get() / (double) seconds, merged.get() / (double) seconds);
+        System.exit(0);
+    }
+
+    /**
+     * The summary and ack snapshot taken when a session starts (as the partner does)
+     */
+    private static void snapshot(ServerData serverData) {
+        TimestampVector summary = serverData.getSummary().clone();
+        serverData.getAckLock().lock();
+        try {
+            serverData.getAck().clone();
+            serverData.getAck().update(serverData.getId(), summary);
+        } finally {
+            serverData.getAckLock().unlock();
+        }
+    }
+}
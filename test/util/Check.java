@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import java.util.Objects;
+
+/**
+ * Assertions of the tests run by TestRunner: a failed check throws an
+ * AssertionError with the message and the values compared.
+ */
+public final class Check {
+
+    private Check() {
+    }
+
+    public static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void isFalse(boolean condition, String message) {
+        isTrue(!condition, message);
+    }
+
+    public static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    public static void equal(long expected, long actual, String message) {
+        if (expected != actual) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    public static void isNull(Object actual, String message) {
+        equal(null, actual, message);
+    }
+
+    public static void notNull(Object actual, String message) {
+        isTrue(actual != null, message);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) Joan-Manuel Marques 2013. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This file is part of the practical assignment of Distributed Systems course.
+ *
+ * This code is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this code.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests of the given classes: each public void method without
+ * parameters whose name starts with "test" is run on a new instance of its
+ * class. A test fails if it throws (see Check).
+ * <p>
+ * Usage: TestRunner testClass...
+ * <br>Exits with status 1 if any test fails.
+ */
+public class TestRunner {
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        // (LSim prints a warning for each log call when it is not initialized)
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        int run = 0;
+        List<String> failures = new ArrayList<>();
+        for (String name : args) {
+            Class<?> testClass = Class.forName(name);
+            for (Method method : tests(testClass)) {
+                run++;
+                String test = testClass.getSimpleName() + "." + method.getName();
+                try {
+                    method.invoke(testClass.getDeclaredConstructor().newInstance());
+                    out.println("ok   " + test);
+                } catch (InvocationTargetException e) {
+                    failures.add(test);
+                    out.println("FAIL " + test + ": " + e.getCause());
+                    e.getCause().printStackTrace(out);
+                }
+            }
+        }
+
+        out.println(run + " tests, " + failures.size() + " failed" + (failures.isEmpty() ? "" : ": " + failures));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static List<Method> tests(Class<?> testClass) {
+        List<Method> tests = new ArrayList<>();
+        for (Method method : testClass.getMethods()) {
+            if (method.getName().startsWith("test") && method.getParameterCount() == 0
+                    && method.getReturnType() == void.class && !Modifier.isStatic(method.getModifiers())) {
+                tests.add(method);
+            }
+        }
+        // (in a fixed order, as getMethods does not sort them)
+        tests.sort(Comparator.comparing(Method::getName));
+        return tests;
+    }
+}